@@ -0,0 +1,84 @@
+package com.manhdev.vernazza.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.manhdev.vernazza.DirectoryLister;
+
+/**
+ * Lists and sorts a directory the size of a well filled camera or download folder, as the file
+ * dialog does on every navigation.
+ *
+ * The directory is created in the temporary directory and holds subdirectories and files of
+ * several types, most of them filtered out when the video filter is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DirectoryListerBenchmark {
+
+    private static final int DIRECTORY_COUNT = 50;
+    private static final int FILE_COUNT = 2000;
+    private static final String[] EXTENSIONS = { ".mp4", ".jpg", ".mkv", ".txt", ".3gp" };
+    private static final String[] VIDEO_FILTER = { ".mp4", ".mkv", ".3gp" };
+
+    /** "all" to list every file, "video" to apply the video filter. */
+    @Param({ "all", "video" })
+    public String filter;
+
+    private DirectoryLister lister;
+    private File root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        lister = new DirectoryLister("video".equals(filter) ? VIDEO_FILTER : null);
+        root = File.createTempFile("vernazza-bench", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("cannot create " + root);
+        }
+        for (int i = 0; i < DIRECTORY_COUNT; i++) {
+            new File(root, "Folder " + (i * 7919 % DIRECTORY_COUNT)).mkdir();
+        }
+        for (int i = 0; i < FILE_COUNT; i++) {
+            // Names in no particular order, so sorting has work to do
+            String name = "VID_" + (i * 7919 % FILE_COUNT) + EXTENSIONS[i % EXTENSIONS.length];
+            if (!new File(root, name).createNewFile()) {
+                throw new IOException("cannot create " + name);
+            }
+        }
+    }
+
+    @Benchmark
+    public DirectoryLister.Listing list() {
+        return lister.list(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] entries = root.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                entry.delete();
+            }
+        }
+        root.delete();
+    }
+}
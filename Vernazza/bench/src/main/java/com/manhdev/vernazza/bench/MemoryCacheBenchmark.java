@@ -0,0 +1,96 @@
+package com.manhdev.vernazza.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.manhdev.vernazza.FrameKey;
+import com.manhdev.vernazza.MemoryCache;
+
+/**
+ * Looks frames up in the frame cache and inserts the missing ones, evicting the least recently
+ * used, from one thread or from several at once as the extraction workers do.
+ *
+ * Keys are drawn uniformly from twice the capacity of the cache, so about half of the lookups
+ * miss and every miss evicts. The hit rate is printed when the trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MemoryCacheBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private static final int KEY_RANGE = 2 * CAPACITY;
+    private static final long FRAME_INTERVAL_US = 200000;
+    private static final Object FRAME = new Object();
+
+    private MemoryCache<FrameKey, Object> cache;
+
+    /**
+     * Random state of each thread, so the threads only contend on the cache.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        long seed = System.nanoTime() | 1;
+
+        FrameKey next() {
+            // xorshift, cheap enough not to dominate the measurement
+            long x = seed;
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            seed = x;
+            return new FrameKey("video", ((x >>> 1) % KEY_RANGE) * FRAME_INTERVAL_US);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new MemoryCache<FrameKey, Object>(CAPACITY) {
+            @Override
+            protected int sizeOf(FrameKey key, Object value) {
+                return 1;
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(cache);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object getOrPut(Keys keys) {
+        return getOrPut(keys.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getOrPutContended(Keys keys) {
+        return getOrPut(keys.next());
+    }
+
+    private Object getOrPut(FrameKey key) {
+        Object frame = cache.get(key);
+        if (frame == null) {
+            cache.put(key, FRAME);
+        }
+        return frame;
+    }
+}
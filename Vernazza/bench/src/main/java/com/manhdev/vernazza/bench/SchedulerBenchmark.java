@@ -0,0 +1,161 @@
+package com.manhdev.vernazza.bench;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.manhdev.vernazza.ExtractionScheduler;
+
+/**
+ * Scrolls a frame list whose frames come from a {@link SyntheticFrameSource}, through the
+ * extraction scheduling policy.
+ *
+ * <p>One operation moves the visible window by the stride, submits the rows that became visible
+ * and prefetches beyond the window as the list does, then waits until every visible row has its
+ * frame. Throughput is thus the scroll speed the scheduler sustains, and the report tells how
+ * long a visible row waited and how many jobs were dropped as their rows left the window.</p>
+ *
+ * Rows are decoded once; later visits are served as if from the cache. The workers are started
+ * once per trial, so thread creation is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SchedulerBenchmark {
+
+    private static final int WORKERS = 4;
+    private static final int VISIBLE_ROWS = 6;
+    private static final int PREFETCH_ROWS = 4;
+    private static final long FRAME_INTERVAL_US = 1000000;
+
+    /** Rows scrolled per operation. */
+    @Param({ "1", "3" })
+    public int stride;
+
+    /** Decode latency of the synthetic source, in usecs. */
+    @Param({ "0", "2000" })
+    public long latencyMicros;
+
+    private SyntheticFrameSource source;
+    private ExtractionScheduler scheduler;
+
+    // Guarded by this, shared with the workers
+    private final HashSet<Integer> decoded = new HashSet<Integer>();
+    private final HashMap<Integer, FrameJob> pending = new HashMap<Integer, FrameJob>();
+    private int first;
+    private long steps;
+    private long waitNanos;
+
+    private class FrameJob extends ExtractionScheduler.Job {
+        private final int row;
+        // Priority class requested, which the scheduler does not expose
+        int priority;
+
+        FrameJob(int row, int priority) {
+            super(row, priority);
+            this.row = row;
+            this.priority = priority;
+        }
+
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            source.decode(row * FRAME_INTERVAL_US);
+            synchronized (SchedulerBenchmark.this) {
+                decoded.add(row);
+                pending.remove(row);
+                SchedulerBenchmark.this.notifyAll();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = new SyntheticFrameSource(latencyMicros, 160, 90);
+        scheduler = new ExtractionScheduler(WORKERS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SchedulerBenchmark-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // As FrameExtractor.setPrefetchWindow does
+        scheduler.setRetainMargin(ExtractionScheduler.DEFAULT_RETAIN_MARGIN + PREFETCH_ROWS);
+    }
+
+    @Benchmark
+    public int scroll() throws InterruptedException {
+        first += stride;
+        int last = first + VISIBLE_ROWS - 1;
+        scheduler.setVisibleRange(first, last);
+        for (int row = first; row <= last + PREFETCH_ROWS; row++) {
+            submit(row, row <= last ? ExtractionScheduler.PRIORITY_VISIBLE
+                    : ExtractionScheduler.PRIORITY_PREFETCH);
+        }
+
+        long start = System.nanoTime();
+        synchronized (this) {
+            for (int row = first; row <= last; row++) {
+                while (!decoded.contains(row)) {
+                    wait();
+                }
+            }
+            // Forget rows far behind, as the cache would
+            for (int row = first - stride; row < first; row++) {
+                decoded.remove(row - VISIBLE_ROWS);
+                pending.remove(row - VISIBLE_ROWS);
+            }
+            steps++;
+            waitNanos += System.nanoTime() - start;
+        }
+        return last;
+    }
+
+    private void submit(int row, int priority) {
+        FrameJob job;
+        synchronized (this) {
+            if (decoded.contains(row)) {
+                return;
+            }
+            job = pending.get(row);
+            if (job != null && !job.isCancelled()) {
+                if (priority < job.priority) {
+                    // Prefetched row became visible, as in FrameExtractor.forceExtract
+                    job.priority = priority;
+                    scheduler.setPriority(job, priority);
+                }
+                return;
+            }
+            job = new FrameJob(row, priority);
+            pending.put(row, job);
+        }
+        scheduler.submit(job);
+    }
+
+    @TearDown(Level.Trial)
+    public synchronized void tearDown() {
+        long waitMicros = steps > 0 ? TimeUnit.NANOSECONDS.toMicros(waitNanos / steps) : 0;
+        System.out.println("visibleWait=" + waitMicros + "us/step,dropped="
+                + scheduler.getDroppedCount() + ",queueDepth=" + scheduler.getQueueDepth());
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,37 @@
+package com.manhdev.vernazza.bench;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the platform decoder: returns a frame of pixels for a time offset after a
+ * fixed latency, without using the CPU while it waits, as a hardware decode would.
+ */
+public class SyntheticFrameSource {
+
+    private final long latencyNanos;
+    private final int pixelCount;
+
+    /**
+     * @param latencyMicros Time a decode takes, in usecs.
+     * @param width         Width of the frames.
+     * @param height        Height of the frames.
+     */
+    public SyntheticFrameSource(long latencyMicros, int width, int height) {
+        this.latencyNanos = latencyMicros * 1000;
+        this.pixelCount = width * height;
+    }
+
+    /**
+     * Decodes the frame at timeUs, blocking for the configured latency.
+     */
+    public int[] decode(long timeUs) {
+        long deadline = System.nanoTime() + latencyNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+        int[] pixels = new int[pixelCount];
+        pixels[0] = (int) timeUs;
+        return pixels;
+    }
+}
@@ -0,0 +1,55 @@
+package com.manhdev.vernazza.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.manhdev.vernazza.TimeFormatter;
+
+/**
+ * Formats frame list labels, either with {@link TimeFormatter} or with the String.format and
+ * TimeUnit conversions the list used before, as the baseline.
+ *
+ * Run with -prof gc to compare the allocation rates as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimeFormatterBenchmark {
+
+    private static final long STEP_MS = 200;
+
+    private final TimeFormatter formatter = new TimeFormatter();
+    private long millis;
+
+    @Benchmark
+    public void format(Blackhole blackhole) {
+        millis += STEP_MS;
+        blackhole.consume(formatter.format(millis, (millis & 1024) != 0));
+        blackhole.consume(formatter.getBuffer());
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        millis += STEP_MS;
+        long mins = TimeUnit.MILLISECONDS.toMinutes(millis);
+        long secs = TimeUnit.MILLISECONDS.toSeconds(millis) - TimeUnit.MINUTES.toSeconds(mins);
+        if ((millis & 1024) != 0) {
+            long msecs = millis - TimeUnit.MINUTES.toMillis(mins) - TimeUnit.SECONDS.toMillis(secs);
+            return String.format("%02d:%02d.%03d", mins, secs, msecs);
+        }
+        return String.format("%02d:%02d", mins, secs);
+    }
+}
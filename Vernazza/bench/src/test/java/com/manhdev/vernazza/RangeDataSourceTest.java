@@ -0,0 +1,215 @@
+package com.manhdev.vernazza;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Reads through a {@link RangeDataSource} from a local server honouring range requests, or
+ * answering them in the ways a real server may instead.
+ */
+public class RangeDataSourceTest {
+
+    private static final int BLOCK = RangeDataSource.BLOCK_SIZE;
+    // Ends with a short block
+    private static final int LENGTH = 2 * BLOCK + 1000;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final byte[] content = new byte[LENGTH];
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private HttpServer server;
+    private URL url;
+
+    // How the server answers
+    private volatile boolean ignoreRanges;
+    private volatile boolean hideLength;
+    private volatile CountDownLatch arrived;
+    private volatile CountDownLatch release;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < LENGTH; i++) {
+            content[i] = (byte) (i * 31 + (i >> 8));
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/video.mp4", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/video.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void readsTheShortLastBlock() throws IOException {
+        RangeDataSource source = new RangeDataSource(url);
+        assertEquals(LENGTH, source.getLength());
+
+        byte[] buffer = new byte[100];
+        assertEquals(10, source.read(LENGTH - 10, buffer, 0, buffer.length));
+        assertArrayEquals(slice(LENGTH - 10, 10), slice(buffer, 10));
+        assertEquals(-1, source.read(LENGTH, buffer, 0, buffer.length));
+        assertEquals("bytes=" + 2 * BLOCK + "-" + (LENGTH - 1), ranges.get(ranges.size() - 1));
+    }
+
+    @Test
+    public void readsStopAtBlockEnds() throws IOException {
+        RangeDataSource source = new RangeDataSource(url);
+        byte[] buffer = new byte[100];
+        assertEquals(40, source.read(BLOCK - 40, buffer, 0, buffer.length));
+        assertArrayEquals(slice(BLOCK - 40, 40), slice(buffer, 40));
+        assertEquals(100, source.read(BLOCK, buffer, 0, buffer.length));
+        assertArrayEquals(slice(BLOCK, 100), buffer);
+        // Block 0, which also told the length, then block 1
+        assertEquals(2, ranges.size());
+    }
+
+    @Test
+    public void fullResponseFailsTheRead() {
+        ignoreRanges = true;
+        try {
+            new RangeDataSource(url).read(0, new byte[100], 0, 100);
+            fail("read a 200 response");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 200"));
+        }
+    }
+
+    @Test
+    public void unknownLengthFailsTheRead() {
+        hideLength = true;
+        try {
+            new RangeDataSource(url).getLength();
+            fail("read without a length");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("no length"));
+        }
+    }
+
+    @Test
+    public void parsesTotal() {
+        assertEquals(1000, RangeDataSource.parseTotal("bytes 0-99/1000"));
+        assertEquals(-1, RangeDataSource.parseTotal("bytes 0-99/*"));
+        assertEquals(-1, RangeDataSource.parseTotal("bytes 0-99"));
+        assertEquals(-1, RangeDataSource.parseTotal(null));
+    }
+
+    @Test
+    public void concurrentReadsShareOneFetch() throws Exception {
+        final RangeDataSource source = new RangeDataSource(url);
+        source.getLength();
+        arrived = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        final int readers = 4;
+        final CountDownLatch started = new CountDownLatch(readers);
+        final byte[][] results = new byte[readers][];
+        final IOException[] failures = new IOException[readers];
+        Thread[] threads = new Thread[readers];
+        for (int i = 0; i < readers; i++) {
+            final int reader = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[50];
+                    started.countDown();
+                    try {
+                        int read = source.read(BLOCK + reader * 50, buffer, 0, buffer.length);
+                        results[reader] = slice(buffer, read);
+                    } catch (IOException e) {
+                        failures[reader] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        // Leave the other readers time to find the block in flight
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        for (int i = 0; i < readers; i++) {
+            assertEquals(null, failures[i]);
+            assertArrayEquals(slice(BLOCK + i * 50, 50), results[i]);
+        }
+        assertEquals(1, Collections.frequency(ranges, "bytes=" + BLOCK + "-" + (2 * BLOCK - 1)));
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        ranges.add(range);
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        int start = 0;
+        int end = LENGTH - 1;
+        int code = 200;
+        if (matcher != null && matcher.matches() && !ignoreRanges) {
+            start = Integer.parseInt(matcher.group(1));
+            end = Math.min(end, Integer.parseInt(matcher.group(2)));
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + (hideLength ? "*" : "" + LENGTH));
+        }
+        if (start > 0 && arrived != null) {
+            arrived.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "video/mp4");
+        exchange.sendResponseHeaders(code, end - start + 1);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(content, start, end - start + 1);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] slice(int start, int count) {
+        return slice(content, start, count);
+    }
+
+    private static byte[] slice(byte[] bytes, int count) {
+        return slice(bytes, 0, count);
+    }
+
+    private static byte[] slice(byte[] bytes, int start, int count) {
+        byte[] slice = new byte[count];
+        System.arraycopy(bytes, start, slice, 0, count);
+        return slice;
+    }
+}
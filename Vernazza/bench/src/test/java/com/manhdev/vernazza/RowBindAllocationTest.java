@@ -0,0 +1,110 @@
+package com.manhdev.vernazza;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the Android-free steps of binding a recycled frame list row allocate nothing:
+ * looking its cached frame up through {@link FrameLookup}, as FrameExtractor.extract does, and
+ * updating its {@link FrameLabel}, as ImageAdapter.getView does.
+ *
+ * Binding the frame to the view, with its drawable and the bitmap pool, needs the Android
+ * framework and is not covered.
+ */
+public class RowBindAllocationTest {
+
+    private static final String VIDEO_ID = "video";
+    private static final int ROWS = 64;
+    private static final long INTERVAL_US = 200000;
+    private static final int WARMUP_BINDS = 200000;
+    private static final int MEASURED_BINDS = 100000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private MemoryCache<FrameKey, Object> cache;
+    private FrameLookup<Object> lookup;
+    private final FrameLabel[] labels = new FrameLabel[4];
+    private long found;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        cache = new MemoryCache<FrameKey, Object>(ROWS) {
+            @Override
+            protected int sizeOf(FrameKey key, Object value) {
+                return 1;
+            }
+        };
+        for (int row = 0; row < ROWS; row++) {
+            cache.put(new FrameKey(VIDEO_ID, row * INTERVAL_US), new Object());
+        }
+        lookup = new FrameLookup<Object>(cache, VIDEO_ID);
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = new FrameLabel();
+        }
+    }
+
+    @Test
+    public void labelFormatsOnlyWhenTheTimeChanges() {
+        FrameLabel label = new FrameLabel();
+        assertTrue(label.update(83456000, true));
+        assertEquals("01:23.456", new String(label.getBuffer(), 0, label.getLength()));
+        assertFalse(label.update(83456000, true));
+        assertTrue(label.update(83456000, false));
+        assertEquals("01:23", new String(label.getBuffer(), 0, label.getLength()));
+    }
+
+    @Test
+    public void lookupFindsFramesOfItsVideoOnly() {
+        assertNotNull(lookup.get(3 * INTERVAL_US, true));
+        assertTrue(lookup.contains(3 * INTERVAL_US, true));
+        assertEquals(null, lookup.get(3 * INTERVAL_US, false));
+        assertEquals(null, new FrameLookup<Object>(cache, "other").get(3 * INTERVAL_US, true));
+    }
+
+    @Test
+    public void lookupAndLabelAllocateNothing() {
+        bind(WARMUP_BINDS);
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead;
+
+        long start = allocatedBytes();
+        bind(MEASURED_BINDS);
+        long allocated = allocatedBytes() - start - overhead;
+
+        assertEquals(MEASURED_BINDS + WARMUP_BINDS, found);
+        assertEquals("bytes allocated by " + MEASURED_BINDS + " binds", 0, allocated);
+    }
+
+    /**
+     * Scrolls a few recycled rows over the cached frames, looking each frame up and updating
+     * the row label.
+     */
+    private void bind(int count) {
+        for (int i = 0; i < count; i++) {
+            int position = i % ROWS;
+            FrameLabel label = labels[i % labels.length];
+            long timeUs = position * INTERVAL_US;
+            if (lookup.get(timeUs, true) != null) {
+                found++;
+            }
+            label.update(timeUs, (i & 1) != 0);
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
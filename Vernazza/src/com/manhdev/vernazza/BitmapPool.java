@@ -0,0 +1,159 @@
+package com.manhdev.vernazza;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of mutable bitmaps bucketed by size and config, so that frames evicted from the cache
+ * provide the pixel buffers of the frames extracted next.
+ *
+ * <p>Bitmaps still shown by a view must not be overwritten. Callers report which bitmaps are
+ * displayed and a bitmap released while displayed only enters the pool once it is hidden.</p>
+ *
+ * Reuses and allocations are counted; in the steady state of scrolling the strip only reuses
+ * should increase.
+ */
+public class BitmapPool {
+
+    private final long maxBytes;
+    private long size;
+
+    private final HashMap<Long, ArrayDeque<Bitmap>> buckets = new HashMap<Long, ArrayDeque<Bitmap>>();
+
+    // Number of views currently showing each bitmap. Entries drop to 0 rather than being
+    // removed, so rebinding a bitmap does not allocate a new entry.
+    private final WeakHashMap<Bitmap, Integer> displayed = new WeakHashMap<Bitmap, Integer>();
+
+    // Released bitmaps waiting for their last view to let go
+    private final Set<Bitmap> pendingRelease =
+        Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+
+    private long reuseCount;
+    private long allocationCount;
+
+    /**
+     * @param maxBytes  Total size of the idle bitmaps kept for reuse.
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size, reusing a pooled one when possible. The
+     * content of a reused bitmap is undefined.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap == null) {
+            synchronized (this) {
+                allocationCount++;
+            }
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size, or null if there is none.
+     */
+    public synchronized Bitmap getReusable(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bucket = buckets.get(bucketKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = bucket.pop();
+        size -= byteCount(bitmap);
+        reuseCount++;
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap that is no longer cached back to the pool. Displayed bitmaps are pooled
+     * once hidden, and bitmaps that do not fit in the pool are recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        Integer count = displayed.get(bitmap);
+        if (count != null && count > 0) {
+            pendingRelease.add(bitmap);
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() == null
+                || size + byteCount(bitmap) > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        Long key = bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        bucket.push(bitmap);
+        size += byteCount(bitmap);
+    }
+
+    /**
+     * Records that a view started showing bitmap.
+     */
+    public synchronized void markDisplayed(Bitmap bitmap) {
+        Integer count = displayed.get(bitmap);
+        displayed.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Records that a view stopped showing bitmap, pooling it if it was released meanwhile.
+     */
+    public synchronized void markHidden(Bitmap bitmap) {
+        Integer count = displayed.get(bitmap);
+        if (count == null || count == 0) {
+            return;
+        }
+        displayed.put(bitmap, count - 1);
+        if (count == 1 && pendingRelease.remove(bitmap)) {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * Recycles all idle bitmaps.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> bucket : buckets.values()) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+        }
+        buckets.clear();
+        size = 0;
+    }
+
+    public synchronized long reuseCount() {
+        return reuseCount;
+    }
+
+    public synchronized long allocationCount() {
+        return allocationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + size + "/" + maxBytes + ",reuses=" + reuseCount
+                + ",allocations=" + allocationCount + "]";
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static Long bucketKey(int width, int height, Bitmap.Config config) {
+        return ((long) config.ordinal() << 48) | ((long) width << 24) | height;
+    }
+}
@@ -0,0 +1,39 @@
+package com.manhdev.vernazza;
+
+import java.io.IOException;
+
+/**
+ * Random access to the bytes of a remote video, as served to the media framework by
+ * {@link LocalProxyServer}.
+ *
+ * Reads may block until the requested bytes have arrived, so they must not happen on the UI
+ * thread.
+ */
+public interface ByteSource {
+
+    /**
+     * Returns the total length in bytes, waiting for it to be known if necessary.
+     * @return          Length or -1 if the remote end did not tell.
+     */
+    long getLength() throws IOException;
+
+    /**
+     * Returns the MIME type reported by the remote end, or null.
+     */
+    String getContentType();
+
+    /**
+     * Returns the location the bytes come from. It identifies the content across runs.
+     */
+    String getOrigin();
+
+    /**
+     * Reads bytes at the given position, waiting until at least one is available.
+     * @param position  Offset in the content.
+     * @param buffer    Destination of the bytes.
+     * @param offset    Offset in buffer.
+     * @param count     Maximum number of bytes read.
+     * @return          Number of bytes read, or -1 at the end of the content.
+     */
+    int read(long position, byte[] buffer, int offset, int count) throws IOException;
+}
@@ -0,0 +1,339 @@
+package com.manhdev.vernazza;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashSet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Downloads a byte range of a remote file over several connections at once.
+ *
+ * <p>The range is split into chunks which are handed out front to back, so the start of the
+ * content still arrives first and can be played while the rest downloads. Every connection
+ * writes its chunk at its own position of the target file channel. A chunk that fails is
+ * retried from where it stopped, a few times, before the whole download fails.</p>
+ *
+ * Every chunk request is conditional on the content being unchanged. The throughput of each
+ * chunk is logged and reported to the listener, which tells how well the connections use the
+ * link.
+ */
+public class ChunkedDownloader {
+
+    private static final String LOG_TAG = "ChunkedDownloader";
+
+    /** Size of the ranges fetched by a single request. */
+    public static final int DEFAULT_CHUNK_SIZE = 2 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    // Delay before the first retry of a chunk, doubled for each further retry, in msecs
+    private static final long RETRY_DELAY = 500;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Receives the progress of the download, on the download threads.
+     */
+    public interface Listener {
+        /**
+         * Called whenever bytes were written.
+         * @param contiguous    End of the bytes written without gaps from the start of the range.
+         */
+        void onProgress(long contiguous);
+
+        /**
+         * Called when a chunk is complete.
+         * @param start         First byte of the chunk.
+         * @param end           Last byte of the chunk, inclusive.
+         * @param elapsedMs     Time spent on the chunk, retries included.
+         * @param attempts      Number of requests made for the chunk.
+         */
+        void onChunkComplete(long start, long end, long elapsedMs, int attempts);
+    }
+
+    private static final class Chunk {
+        final long start;
+        final long end;
+        long written;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isDone() {
+            return start + written > end;
+        }
+    }
+
+    private final URL url;
+    private final String validator;
+    private final FileChannel channel;
+    private final Listener listener;
+    private final Chunk[] chunks;
+
+    private InputStream initialStream;
+    private int nextChunk;
+    private int firstIncomplete;
+    private IOException failure;
+    private volatile boolean cancelled;
+    private final HashSet<HttpURLConnection> connections = new HashSet<HttpURLConnection>();
+
+    /**
+     * @param url           Location of the file.
+     * @param validator     ETag or Last-Modified value of the content, sent as If-Range.
+     * @param channel       Target file, written at the offsets of the content.
+     * @param start         First byte to download.
+     * @param end           Last byte to download, inclusive.
+     * @param chunkSize     Number of bytes fetched by a single request.
+     * @param listener      Receiver of progress reports.
+     */
+    public ChunkedDownloader(URL url, String validator, FileChannel channel, long start, long end,
+            int chunkSize, Listener listener) {
+        this.url = url;
+        this.validator = validator;
+        this.channel = channel;
+        this.listener = listener;
+        int count = (int) ((end - start + chunkSize) / chunkSize);
+        chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            long chunkStart = start + (long) i * chunkSize;
+            chunks[i] = new Chunk(chunkStart, Math.min(end, chunkStart + chunkSize - 1));
+        }
+    }
+
+    /**
+     * Provides a response body that starts at the first byte of the range, such as the body
+     * of the request that revealed the length. It serves the first chunk, saving a round trip.
+     */
+    public synchronized void setInitialStream(InputStream in) {
+        initialStream = in;
+    }
+
+    /**
+     * Downloads all chunks, blocking until they are complete.
+     * @param parallelism   Number of concurrent connections.
+     * @throws IOException  If a chunk failed all its attempts or the download was cancelled.
+     */
+    public void run(int parallelism) throws IOException {
+        Thread[] workers = new Thread[Math.max(1, Math.min(parallelism, chunks.length))];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, LOG_TAG + "-" + i);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            closeInitialStream();
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        if (cancelled) {
+            throw new IOException("download cancelled");
+        }
+    }
+
+    /**
+     * Closes the initial stream if the first chunk never took it, such as when the download
+     * failed or was cancelled first, so that its body stops arriving.
+     */
+    private void closeInitialStream() {
+        InputStream in;
+        synchronized (this) {
+            in = initialStream;
+            initialStream = null;
+        }
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Stops all connections. {@link #run(int)} then fails.
+     */
+    public void cancel() {
+        cancelled = true;
+        HttpURLConnection[] active;
+        synchronized (this) {
+            active = connections.toArray(new HttpURLConnection[connections.size()]);
+        }
+        for (HttpURLConnection connection : active) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Returns the end of the bytes written without gaps from the start of the range.
+     */
+    public synchronized long getContiguous() {
+        while (firstIncomplete < chunks.length && chunks[firstIncomplete].isDone()) {
+            firstIncomplete++;
+        }
+        if (firstIncomplete == chunks.length) {
+            return chunks[chunks.length - 1].end + 1;
+        }
+        Chunk chunk = chunks[firstIncomplete];
+        return chunk.start + chunk.written;
+    }
+
+    /**
+     * Returns the number of bytes available at position without waiting.
+     */
+    public synchronized long getAvailable(long position) {
+        if (position < chunks[0].start) {
+            return 0;
+        }
+        int index = (int) ((position - chunks[0].start) / (chunks[0].end - chunks[0].start + 1));
+        for (int i = index; i < chunks.length; i++) {
+            Chunk chunk = chunks[i];
+            long available = chunk.start + chunk.written - position;
+            if (!chunk.isDone()) {
+                return Math.max(0, available);
+            }
+            // Completed chunks run into the next one
+            if (i == chunks.length - 1) {
+                return Math.max(0, available);
+            }
+        }
+        return 0;
+    }
+
+    private synchronized Chunk takeChunk() {
+        if (cancelled || failure != null || nextChunk == chunks.length) {
+            return null;
+        }
+        return chunks[nextChunk++];
+    }
+
+    private void work() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        Chunk chunk;
+        while ((chunk = takeChunk()) != null) {
+            try {
+                downloadChunk(chunk, buffer);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                cancel();
+                return;
+            }
+        }
+    }
+
+    private void downloadChunk(Chunk chunk, ByteBuffer buffer) throws IOException {
+        long begin = SystemClock.elapsedRealtime();
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            try {
+                fetch(chunk, buffer);
+                break;
+            } catch (IOException e) {
+                if (cancelled || attempts >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Log.w(LOG_TAG, "chunk " + chunk.start + " attempt " + attempts + ": " + e);
+                try {
+                    Thread.sleep(RETRY_DELAY << (attempts - 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - begin);
+        Log.i(LOG_TAG, "chunk " + chunk.start + "-" + chunk.end + ": "
+                + ((chunk.end - chunk.start + 1) / elapsed) + " KB/s, " + attempts + " attempts");
+        listener.onChunkComplete(chunk.start, chunk.end, elapsed, attempts);
+    }
+
+    private void fetch(Chunk chunk, ByteBuffer buffer) throws IOException {
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        synchronized (this) {
+            if (chunk == chunks[0] && chunk.written == 0) {
+                in = initialStream;
+                initialStream = null;
+            }
+        }
+        long position = chunk.start + chunk.written;
+        if (in == null) {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty("Range", "bytes=" + position + "-" + chunk.end);
+            connection.setRequestProperty("If-Range", validator);
+            synchronized (this) {
+                connections.add(connection);
+            }
+        }
+        try {
+            if (connection != null) {
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    // A full response means the content changed under us
+                    throw new IOException("HTTP " + code + " for chunk of " + url);
+                }
+                in = connection.getInputStream();
+            }
+            ReadableByteChannel source = Channels.newChannel(in);
+            while (position <= chunk.end) {
+                if (cancelled) {
+                    throw new IOException("download cancelled");
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), chunk.end + 1 - position));
+                if (source.read(buffer) < 0) {
+                    throw new IOException("short chunk of " + url);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                synchronized (this) {
+                    chunk.written = position - chunk.start;
+                }
+                listener.onProgress(getContiguous());
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (connection != null) {
+                synchronized (this) {
+                    connections.remove(connection);
+                }
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.manhdev.vernazza;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Lists a directory for the file dialog: its subdirectories and the files matching the format
+ * filter, each group sorted by name.
+ *
+ * <p>Large folders can be scanned incrementally: entries are delivered in sorted batches as they
+ * are found, the first one small so that rows show at once, and the scan stops as soon as the
+ * scanning thread is interrupted.</p>
+ *
+ * It depends on nothing from Android, so the listing can be measured on a plain JVM.
+ */
+public class DirectoryLister {
+
+    // Entries in the first batch, doubled for each following batch up to the maximum
+    private static final int FIRST_BATCH = 32;
+    private static final int MAX_BATCH = 1024;
+    // Longest time a found entry waits for its batch to fill, in nsecs
+    private static final long MAX_BATCH_DELAY = 100L * 1000 * 1000;
+
+    /** Order of the entries within each group. */
+    public static final Comparator<File> NAME_ORDER = new Comparator<File>() {
+        public int compare(File a, File b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    /**
+     * Entries of a directory.
+     */
+    public static final class Listing {
+        public final List<File> directories;
+        public final List<File> files;
+
+        Listing(List<File> directories, List<File> files) {
+            this.directories = directories;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Receives the entries of a directory as they are found, on the scanning thread.
+     */
+    public interface Callback {
+        /**
+         * @param directories   Subdirectories found since the previous batch, sorted by name.
+         * @param files         Files passing the filter found since the previous batch, sorted.
+         */
+        void onBatch(List<File> directories, List<File> files);
+    }
+
+    // Lower case extensions, or null to list all files
+    private final String[] formatFilter;
+
+    /**
+     * @param formatFilter  Extensions of the files to list, in any case, or null for all files.
+     */
+    public DirectoryLister(String[] formatFilter) {
+        if (formatFilter != null) {
+            this.formatFilter = new String[formatFilter.length];
+            for (int i = 0; i < formatFilter.length; i++) {
+                this.formatFilter[i] = formatFilter[i].toLowerCase();
+            }
+        } else {
+            this.formatFilter = null;
+        }
+    }
+
+    /**
+     * Returns the lower case extensions of the files listed, or null if all files are.
+     */
+    public String[] getFormatFilter() {
+        return formatFilter == null ? null : formatFilter.clone();
+    }
+
+    /**
+     * @param dir   Directory to list.
+     * @return The entries of dir, or null if it cannot be read.
+     */
+    public Listing list(File dir) {
+        final ArrayList<File> directories = new ArrayList<File>();
+        final ArrayList<File> files = new ArrayList<File>();
+        boolean readable = list(dir, new Callback() {
+            public void onBatch(List<File> batchDirectories, List<File> batchFiles) {
+                directories.addAll(batchDirectories);
+                files.addAll(batchFiles);
+            }
+        });
+        if (!readable) {
+            return null;
+        }
+        Collections.sort(directories, NAME_ORDER);
+        Collections.sort(files, NAME_ORDER);
+        return new Listing(directories, files);
+    }
+
+    /**
+     * Scans a directory, delivering its entries in batches, each sorted by name. The format
+     * filter is applied during the scan. Stops early, without delivering the entries pending,
+     * if the calling thread is interrupted.
+     * @param dir       Directory to list.
+     * @param callback  Receiver of the batches, called on the calling thread.
+     * @return False if dir cannot be read.
+     */
+    public boolean list(File dir, Callback callback) {
+        String[] names = dir.list();
+        if (names == null) {
+            return false;
+        }
+        int batchSize = FIRST_BATCH;
+        ArrayList<File> directories = new ArrayList<File>();
+        ArrayList<File> files = new ArrayList<File>();
+        long batchStart = System.nanoTime();
+        for (int i = 0; i < names.length; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return true;
+            }
+            File entry = new File(dir, names[i]);
+            if (entry.isDirectory()) {
+                directories.add(entry);
+            } else if (accepts(names[i])) {
+                files.add(entry);
+            }
+            int pending = directories.size() + files.size();
+            if (pending > 0 && (pending >= batchSize || i == names.length - 1
+                    || System.nanoTime() - batchStart >= MAX_BATCH_DELAY)) {
+                Collections.sort(directories, NAME_ORDER);
+                Collections.sort(files, NAME_ORDER);
+                callback.onBatch(directories, files);
+                directories = new ArrayList<File>();
+                files = new ArrayList<File>();
+                batchSize = Math.min(2 * batchSize, MAX_BATCH);
+                batchStart = System.nanoTime();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a file of this name passes the format filter.
+     */
+    public boolean accepts(String fileName) {
+        if (formatFilter == null) {
+            return true;
+        }
+        String fileNameLwr = fileName.toLowerCase();
+        for (String format : formatFilter) {
+            if (fileNameLwr.endsWith(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
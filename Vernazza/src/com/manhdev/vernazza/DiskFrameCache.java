@@ -0,0 +1,151 @@
+package com.manhdev.vernazza;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.webkit.URLUtil;
+
+/**
+ * Disk tier of the frame cache, keeping extracted frames across restarts.
+ *
+ * Frames are stored as JPEG files under the application cache directory, keyed by the
+ * identity of the source video and the time offset of the frame.
+ */
+public class DiskFrameCache {
+
+    private static final String LOG_TAG = "DiskFrameCache";
+    private static final String DIRECTORY = "frames";
+    private static final long MAX_BYTES = 32 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 85;
+
+    private static DiskFrameCache instance;
+
+    private final DiskLruCache cache;
+
+    private DiskFrameCache(DiskLruCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the process wide disk frame cache, opening it on first use. Opening reads the
+     * journal, so this should not be called on the UI thread.
+     * @param cacheDir  Application cache directory.
+     * @return          The cache or null if it could not be opened.
+     */
+    public static synchronized DiskFrameCache open(File cacheDir) {
+        if (instance == null) {
+            try {
+                instance = new DiskFrameCache(new DiskLruCache(new File(cacheDir, DIRECTORY), MAX_BYTES));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns an identifier that changes whenever the video at path is replaced or modified.
+     * @param path  Local path or URL of the video.
+     * @return      Hex digest of path, size and modification time, or of the remote location.
+     */
+    public static String videoIdentity(String path) {
+        if (URLUtil.isNetworkUrl(path)) {
+            // The port of the local proxy changes across runs, its origin does not
+            return digest(LocalProxyServer.getOrigin(path));
+        }
+        File file = new File(path);
+        return digest(file.getAbsolutePath() + '\n' + file.length() + '\n' + file.lastModified());
+    }
+
+    /**
+     * @param videoId   Identity of the video as returned by {@link #videoIdentity(String)}.
+     * @param timeUs    Time offset of the frame in usecs.
+     * @param pool      Pool providing the bitmap to decode into.
+     * @return          The cached frame or null if it was not found.
+     */
+    public Bitmap get(String videoId, long timeUs, BitmapPool pool) {
+        File file = cache.get(key(videoId, timeUs));
+        if (file == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = pool.getReusable(FrameExtractor.FRAME_WIDTH, FrameExtractor.FRAME_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The stored frame does not match the pooled bitmap
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * Returns true if a frame is stored for the video and time offset.
+     */
+    public boolean contains(String videoId, long timeUs) {
+        return cache.contains(key(videoId, timeUs));
+    }
+
+    /**
+     * Stores a frame, replacing any frame cached for the same video and time offset.
+     */
+    public void put(String videoId, long timeUs, Bitmap bitmap) {
+        putJpeg(cache, key(videoId, timeUs), bitmap, JPEG_QUALITY);
+    }
+
+    /**
+     * Compresses bitmap as a JPEG file of cache, committed only if it was written completely.
+     */
+    static void putJpeg(DiskLruCache cache, String key, Bitmap bitmap, int quality) {
+        File editFile = cache.beginEdit(key);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(editFile));
+            boolean written;
+            try {
+                written = bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            } finally {
+                out.close();
+            }
+            if (written) {
+                cache.commit(key, editFile);
+            } else {
+                cache.abort(editFile);
+            }
+        } catch (IOException e) {
+            cache.abort(editFile);
+            Log.e(LOG_TAG, e.toString());
+        }
+    }
+
+    private static String key(String videoId, long timeUs) {
+        return videoId + "-" + Long.toString(timeUs);
+    }
+
+    static String digest(String text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] hash = md.digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
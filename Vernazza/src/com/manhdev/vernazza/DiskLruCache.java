@@ -0,0 +1,393 @@
+package com.manhdev.vernazza;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-budgeted cache of files in a single directory, evicted in least recently used order.
+ *
+ * <p>Every entry is a file named after its key. The access order survives restarts through an
+ * append-only journal which is compacted once most of its lines have become redundant.</p>
+ *
+ * Keys must match {@code [a-z0-9_-]{1,120}} and must not start with "journal". Callers write
+ * new content to the file returned by {@link #beginEdit(String)} and publish it with
+ * {@link #commit(String, File)}.
+ */
+public class DiskLruCache {
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String MAGIC = "vernazza.DiskLruCache";
+    private static final String VERSION = "1";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final char CLEAN = 'C';
+    private static final char READ = 'R';
+    private static final char REMOVE = 'D';
+
+    // Journal lines that no longer describe a live entry before compaction is considered
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final long maxBytes;
+    private long size;
+    private int redundantOps;
+    private Writer journalWriter;
+
+    // Key to entry length in bytes, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+
+    /**
+     * Opens the cache in the given directory, creating it if needed.
+     * @param directory     Directory owned exclusively by this cache.
+     * @param maxBytes      Total size the entries may occupy.
+     */
+    public DiskLruCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        try {
+            readJournal();
+            deleteOrphans();
+        } catch (IOException e) {
+            // A damaged journal costs us the cache contents, nothing more
+            deleteContents();
+            entries.clear();
+            size = 0;
+        }
+        rebuildJournal();
+        trimToSize();
+    }
+
+    /**
+     * Returns the file holding the entry for key and marks it as most recently used.
+     * @return  The entry file or null if there is no such entry.
+     */
+    public synchronized File get(String key) {
+        checkKey(key);
+        if (entries.get(key) == null) {
+            return null;
+        }
+        File file = entryFile(key);
+        if (!file.exists()) {
+            removeEntry(key);
+            return null;
+        }
+        redundantOps++;
+        appendJournal(READ, key, -1);
+        return file;
+    }
+
+    /**
+     * Returns true if an entry exists for key, without affecting its position in the LRU order.
+     */
+    public synchronized boolean contains(String key) {
+        checkKey(key);
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Returns a scratch file to write new content for key to. The content becomes visible only
+     * once passed to {@link #commit(String, File)}; pass it to {@link #abort(File)} on failure.
+     */
+    public File beginEdit(String key) {
+        checkKey(key);
+        return new File(directory, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+    }
+
+    /**
+     * Publishes content written to a file obtained from {@link #beginEdit(String)}, replacing
+     * any previous entry for key.
+     */
+    public synchronized void commit(String key, File editFile) throws IOException {
+        checkKey(key);
+        File file = entryFile(key);
+        if (!editFile.renameTo(file)) {
+            editFile.delete();
+            throw new IOException("cannot commit " + key);
+        }
+        Long previous = entries.put(key, file.length());
+        if (previous != null) {
+            size -= previous;
+            redundantOps++;
+        }
+        size += file.length();
+        appendJournal(CLEAN, key, file.length());
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    /**
+     * Records that the file of an existing entry has been modified in place, for instance
+     * extended by a download, so the byte budget is enforced against its new length.
+     */
+    public synchronized void update(String key) {
+        checkKey(key);
+        Long previous = entries.get(key);
+        if (previous == null) {
+            return;
+        }
+        long length = entryFile(key).length();
+        entries.put(key, length);
+        size += length - previous;
+        redundantOps++;
+        appendJournal(CLEAN, key, length);
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    /**
+     * Discards a scratch file obtained from {@link #beginEdit(String)}.
+     */
+    public void abort(File editFile) {
+        editFile.delete();
+    }
+
+    /**
+     * Removes the entry for key, if any.
+     * @return  True if an entry was removed.
+     */
+    public synchronized boolean remove(String key) {
+        checkKey(key);
+        if (!entries.containsKey(key)) {
+            return false;
+        }
+        removeEntry(key);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes currently held by the cache.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the directory holding the entry files.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes the cache holds before evicting entries.
+     */
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * Writes buffered journal lines to disk.
+     */
+    public synchronized void flush() {
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            // Losing a few access records only degrades the LRU order
+        }
+    }
+
+    /**
+     * Called after an entry has been evicted to respect the byte budget.
+     * @param key   Key of the evicted entry.
+     */
+    protected void entryEvicted(String key) {
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key);
+    }
+
+    private void removeEntry(String key) {
+        Long length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+        }
+        entryFile(key).delete();
+        redundantOps += 2;
+        appendJournal(REMOVE, key, -1);
+    }
+
+    private void trimToSize() {
+        while (size > maxBytes && !entries.isEmpty()) {
+            String eldest = entries.keySet().iterator().next();
+            removeEntry(eldest);
+            entryEvicted(eldest);
+        }
+    }
+
+    private void appendJournal(char op, String key, long length) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(op);
+            journalWriter.write(' ');
+            journalWriter.write(key);
+            if (op == CLEAN) {
+                journalWriter.write(' ');
+                journalWriter.write(Long.toString(length));
+            }
+            journalWriter.write('\n');
+            if (op != READ) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            // The entries themselves are intact; the next rebuild rewrites the journal
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOps >= entries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                // Keep appending to the old journal
+            }
+        }
+    }
+
+    private void readJournal() throws IOException {
+        File journal = new File(directory, JOURNAL);
+        if (!journal.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        try {
+            String header = reader.readLine();
+            if (!(MAGIC + " " + VERSION).equals(header)) {
+                throw new IOException("unexpected journal header " + header);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    // Torn final write
+                    continue;
+                }
+                char op = line.charAt(0);
+                String rest = line.substring(2);
+                if (op == CLEAN) {
+                    int space = rest.indexOf(' ');
+                    if (space < 0) {
+                        continue;
+                    }
+                    String key = rest.substring(0, space);
+                    long length = Long.parseLong(rest.substring(space + 1));
+                    Long previous = entries.put(key, length);
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                    size += length;
+                } else if (op == READ) {
+                    entries.get(rest);
+                } else if (op == REMOVE) {
+                    Long previous = entries.remove(rest);
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("corrupt journal");
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Drops entries whose file went missing or shrank and deletes files that belong to no entry,
+     * such as scratch files of edits interrupted by process death. Files extended in place
+     * after their last {@link #update(String)} keep their content.
+     */
+    private void deleteOrphans() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File file = entryFile(entry.getKey());
+            long length = file.length();
+            if (!file.exists() || length < entry.getValue()) {
+                file.delete();
+                size -= entry.getValue();
+                it.remove();
+            } else if (length > entry.getValue()) {
+                size += length - entry.getValue();
+                entry.setValue(length);
+            }
+        }
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (!name.equals(JOURNAL) && !entries.containsKey(name)) {
+                new File(directory, name).delete();
+            }
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Rewrites the journal with one line per live entry, in LRU order.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+            journalWriter = null;
+        }
+        File tmp = new File(directory, JOURNAL_TMP);
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+        try {
+            writer.write(MAGIC + " " + VERSION + "\n");
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        File journal = new File(directory, JOURNAL);
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("cannot replace journal");
+        }
+        redundantOps = 0;
+        journalWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(journal, true), "US-ASCII"));
+    }
+
+    private static void checkKey(String key) {
+        int length = key.length();
+        if (length == 0 || length > 120 || key.startsWith(JOURNAL)) {
+            throw new IllegalArgumentException("bad key length: " + key);
+        }
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+                throw new IllegalArgumentException("bad key: " + key);
+            }
+        }
+    }
+}
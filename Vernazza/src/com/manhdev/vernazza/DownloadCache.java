@@ -0,0 +1,314 @@
+package com.manhdev.vernazza;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.util.Log;
+
+/**
+ * Keeps downloaded network videos across restarts, so that reopening a recently watched video
+ * costs no bandwidth and an interrupted download resumes where it stopped.
+ *
+ * <p>Content is stored in a {@link DiskLruCache} keyed by a digest of the URL, which enforces
+ * the byte budget and evicts the least recently opened videos. Each entry grows in place while
+ * it downloads. A compact binary index next to it records, per entry, the URL, the validators
+ * needed to resume with a conditional range request and how much of the content is
+ * downloaded.</p>
+ *
+ * <p>Content larger than the whole budget is not kept: it would evict itself while it
+ * downloads. Callers check {@link #fits(long)} first; content of unknown length that outgrows
+ * the budget is dropped from the cache by {@link #update(Entry, long)}.</p>
+ *
+ * All methods may touch the disk and should not be called on the UI thread.
+ */
+public class DownloadCache {
+
+    private static final String LOG_TAG = "DownloadCache";
+    private static final String DIRECTORY = "downloads";
+    private static final String INDEX = "downloads.index";
+    private static final String INDEX_TMP = "downloads.index.tmp";
+    private static final int INDEX_VERSION = 2;
+    private static final long MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * What is known about the content cached for a URL.
+     */
+    public static final class Entry {
+        final String key;
+        final String url;
+        String etag;
+        String lastModified;
+        long length = -1;
+        long downloaded;
+        boolean complete;
+
+        Entry(String key, String url) {
+            this.key = key;
+            this.url = url;
+        }
+
+        public synchronized String getEtag() {
+            return etag;
+        }
+
+        public synchronized String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the total length of the content, or -1 if unknown.
+         */
+        public synchronized long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the number of bytes known to be downloaded from the start of the content. The
+         * file may hold more, but parallel downloads leave gaps past this point.
+         */
+        public synchronized long getDownloaded() {
+            return downloaded;
+        }
+
+        public synchronized boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private static DownloadCache instance;
+
+    private final File indexFile;
+    private final File indexTmpFile;
+    private final HashMap<String, Entry> index = new HashMap<String, Entry>();
+    private final DiskLruCache cache;
+
+    private DownloadCache(File cacheDir) throws IOException {
+        indexFile = new File(cacheDir, INDEX);
+        indexTmpFile = new File(cacheDir, INDEX_TMP);
+        cache = new DiskLruCache(new File(cacheDir, DIRECTORY), MAX_BYTES) {
+            @Override
+            protected void entryEvicted(String key) {
+                // Called with the cache locked, from one of our synchronized methods
+                index.remove(key);
+            }
+        };
+        readIndex();
+    }
+
+    /**
+     * Returns the process wide download cache, opening it on first use.
+     * @param cacheDir  Application cache directory.
+     * @return          The cache or null if it could not be opened.
+     */
+    public static synchronized DownloadCache open(File cacheDir) {
+        if (instance == null) {
+            try {
+                instance = new DownloadCache(cacheDir);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the entry for url, creating an empty one if needed, and marks it as the most
+     * recently used.
+     */
+    public synchronized Entry open(String url) throws IOException {
+        String key = DiskFrameCache.digest(url);
+        Entry entry = index.get(key);
+        if (entry != null && cache.get(key) != null) {
+            return entry;
+        }
+        File editFile = cache.beginEdit(key);
+        editFile.delete();
+        editFile.createNewFile();
+        cache.commit(key, editFile);
+        entry = new Entry(key, url);
+        index.put(key, entry);
+        writeIndex();
+        return entry;
+    }
+
+    /**
+     * Returns true if content of the given length can be kept within the byte budget. Content
+     * of unknown length, given as -1, is assumed to fit.
+     */
+    public boolean fits(long length) {
+        return length <= cache.getMaxSize();
+    }
+
+    /**
+     * Drops an entry and its content, such as content too large to be kept. A file still open
+     * keeps its bytes until it is closed.
+     */
+    public synchronized void remove(Entry entry) {
+        index.remove(entry.key);
+        cache.remove(entry.key);
+        writeIndex();
+    }
+
+    /**
+     * Returns the file holding the content of an entry, at the offsets of the content.
+     */
+    public File getFile(Entry entry) {
+        return new File(cache.getDirectory(), entry.key);
+    }
+
+    /**
+     * Discards the content of an entry, because it is downloaded again from the start, and
+     * records the validators and length of the new response.
+     */
+    public synchronized void reset(Entry entry, String etag, String lastModified, long length)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getFile(entry), "rw");
+        try {
+            file.setLength(0);
+        } finally {
+            file.close();
+        }
+        synchronized (entry) {
+            entry.etag = etag;
+            entry.lastModified = lastModified;
+            entry.length = length;
+            entry.downloaded = 0;
+            entry.complete = false;
+        }
+        cache.update(entry.key);
+        writeIndex();
+    }
+
+    /**
+     * Records that the content of an entry grew, enforcing the byte budget. Content that no
+     * longer fits in the whole budget is dropped rather than evicting everything else.
+     * @param downloaded    Number of bytes downloaded from the start of the content.
+     * @return              False if the entry is not kept in the cache.
+     */
+    public synchronized boolean update(Entry entry, long downloaded) {
+        if (!index.containsKey(entry.key)) {
+            return false;
+        }
+        if (!fits(getFile(entry).length())) {
+            Log.w(LOG_TAG, entry.url + " outgrew the download cache, not kept");
+            remove(entry);
+            return false;
+        }
+        synchronized (entry) {
+            entry.downloaded = downloaded;
+        }
+        cache.update(entry.key);
+        if (!index.containsKey(entry.key)) {
+            return false;
+        }
+        writeIndex();
+        return true;
+    }
+
+    /**
+     * Records that the whole content of an entry is downloaded.
+     * @param length    Total length of the content.
+     */
+    public synchronized void complete(Entry entry, long length) {
+        synchronized (entry) {
+            entry.length = length;
+            entry.downloaded = length;
+            entry.complete = true;
+        }
+        cache.update(entry.key);
+        if (index.containsKey(entry.key)) {
+            writeIndex();
+        }
+    }
+
+    private void readIndex() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_VERSION) {
+                    throw new IOException("unexpected index version");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Entry entry = new Entry(in.readUTF(), in.readUTF());
+                    entry.etag = readOptional(in);
+                    entry.lastModified = readOptional(in);
+                    entry.length = in.readLong();
+                    entry.downloaded = in.readLong();
+                    entry.complete = in.readBoolean();
+                    index.put(entry.key, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Without the validators the content cannot be trusted
+            Log.e(LOG_TAG, e.toString());
+            index.clear();
+        }
+
+        // Drop records of evicted content and of content the cache dropped behind our back
+        Iterator<Entry> it = index.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!cache.contains(entry.key)) {
+                it.remove();
+            } else if (entry.complete && getFile(entry).length() != entry.length) {
+                entry.complete = false;
+                entry.downloaded = 0;
+            }
+        }
+    }
+
+    private void writeIndex() {
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexTmpFile)));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(index.size());
+                for (Entry entry : index.values()) {
+                    synchronized (entry) {
+                        out.writeUTF(entry.key);
+                        out.writeUTF(entry.url);
+                        writeOptional(out, entry.etag);
+                        writeOptional(out, entry.lastModified);
+                        out.writeLong(entry.length);
+                        out.writeLong(entry.downloaded);
+                        out.writeBoolean(entry.complete);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!indexTmpFile.renameTo(indexFile)) {
+                throw new IOException("cannot replace " + indexFile);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.manhdev.vernazza;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs frame extraction jobs on a fixed set of worker threads, most relevant rows first.
+ *
+ * <p>Jobs are ordered by their priority class, then by the distance of their row from the
+ * visible window of the list, then newest first. Jobs whose row has moved further than the
+ * retain margin from the visible window are dropped before they run, so a fling does not leave
+ * a backlog of decodes for rows that are no longer on screen.</p>
+ *
+ * Priority classes above the current limit are held back, for instance while the list scrolls.
+ */
+public class ExtractionScheduler {
+
+    /** Priority class of frames bound to a visible row. */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /** Priority class of frames fetched ahead of the scroll direction. */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Priority class of frames refining a preview already on screen. These jobs are only kept
+     * while their row is visible.
+     */
+    public static final int PRIORITY_REFINE = 2;
+
+    /** Rows beyond the visible window jobs are kept for unless told otherwise. */
+    public static final int DEFAULT_RETAIN_MARGIN = 2;
+
+    /**
+     * Unit of work for the scheduler, tied to a row of the list.
+     */
+    public static abstract class Job implements Runnable {
+        final int position;
+        int priority;
+        private long sequence;
+        private volatile boolean cancelled;
+
+        /**
+         * @param position  Row of the list the job extracts a frame for.
+         * @param priority  Priority class, lower classes run first.
+         */
+        protected Job(int position, int priority) {
+            this.position = position;
+            this.priority = priority;
+        }
+
+        /**
+         * Prevents the job from running if it has not started yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns true if the job was cancelled or dropped by the scheduler.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final ArrayList<Job> queue = new ArrayList<Job>();
+    private final Thread[] workers;
+    private long nextSequence;
+    private boolean shutdown;
+
+    private int firstVisible = 0;
+    private int lastVisible = Integer.MAX_VALUE;
+    private int retainMargin = DEFAULT_RETAIN_MARGIN;
+    private int priorityLimit = Integer.MAX_VALUE;
+
+    private long droppedCount;
+
+    /**
+     * Starts the worker threads.
+     * @param workerCount   Number of jobs run in parallel.
+     * @param threadFactory Factory for the worker threads.
+     */
+    public ExtractionScheduler(int workerCount, ThreadFactory threadFactory) {
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    runJobs();
+                }
+            });
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a job. It runs ahead of every queued job that is further from the visible window.
+     */
+    public synchronized void submit(Job job) {
+        if (shutdown) {
+            job.cancel();
+            return;
+        }
+        job.sequence = nextSequence++;
+        queue.add(job);
+        notify();
+    }
+
+    /**
+     * Changes the priority class of a job, for instance when a prefetched row becomes visible.
+     */
+    public synchronized void setPriority(Job job, int priority) {
+        job.priority = priority;
+    }
+
+    /**
+     * Updates the rows currently on screen. Queued jobs for rows out of reach are dropped.
+     * @param first     First visible row.
+     * @param last      Last visible row, inclusive.
+     */
+    public synchronized void setVisibleRange(int first, int last) {
+        firstVisible = first;
+        lastVisible = last;
+        dropUnreachable();
+    }
+
+    /**
+     * Sets how many rows beyond the visible window jobs are kept for.
+     */
+    public synchronized void setRetainMargin(int rows) {
+        retainMargin = rows;
+        dropUnreachable();
+    }
+
+    /**
+     * Holds back jobs whose priority class is above maxPriority until the limit is raised.
+     */
+    public synchronized void setPriorityLimit(int maxPriority) {
+        priorityLimit = maxPriority;
+        notifyAll();
+    }
+
+    /**
+     * Drops all queued jobs and stops the workers once their current job completes.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            for (Job job : queue) {
+                job.cancel();
+            }
+            queue.clear();
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of jobs dropped because their row left the visible window.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private int distance(int position) {
+        if (position < firstVisible) {
+            return firstVisible - position;
+        } else if (position > lastVisible) {
+            return position - lastVisible;
+        }
+        return 0;
+    }
+
+    private void dropUnreachable() {
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            Job job = queue.get(i);
+            int margin = job.priority == PRIORITY_REFINE ? 0 : retainMargin;
+            if (job.isCancelled() || distance(job.position) > margin) {
+                if (!job.isCancelled()) {
+                    job.cancel();
+                    droppedCount++;
+                }
+                removeAt(i);
+            }
+        }
+    }
+
+    private void removeAt(int i) {
+        // Order is irrelevant since take scans the whole queue
+        int last = queue.size() - 1;
+        queue.set(i, queue.get(last));
+        queue.remove(last);
+    }
+
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            if (shutdown) {
+                return null;
+            }
+            dropUnreachable();
+            int best = -1;
+            int bestDistance = 0;
+            for (int i = 0; i < queue.size(); i++) {
+                Job job = queue.get(i);
+                if (job.priority > priorityLimit) {
+                    continue;
+                }
+                int d = distance(job.position);
+                if (best < 0) {
+                    best = i;
+                    bestDistance = d;
+                    continue;
+                }
+                Job current = queue.get(best);
+                if (job.priority < current.priority
+                        || (job.priority == current.priority
+                            && (d < bestDistance
+                                || (d == bestDistance && job.sequence > current.sequence)))) {
+                    best = i;
+                    bestDistance = d;
+                }
+            }
+            if (best >= 0) {
+                Job job = queue.get(best);
+                removeAt(best);
+                return job;
+            }
+            wait();
+        }
+    }
+
+    private void runJobs() {
+        while (true) {
+            Job job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) {
+                return;
+            }
+            job.run();
+        }
+    }
+}
@@ -2,17 +2,19 @@ package com.manhdev.vernazza;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.TreeMap;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -21,7 +23,6 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListView;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 
 /**
@@ -32,16 +33,6 @@ import android.widget.TextView;
  */
 public class FileDialog extends ListActivity {
 
-	/**
-	 * Chave de um item da lista de paths.
-	 */
-	private static final String ITEM_KEY = "key";
-
-	/**
-	 * Imagem de um item da lista de paths (diretorio ou arquivo).
-	 */
-	private static final String ITEM_IMAGE = "image";
-
 	/**
 	 * Diretorio raiz.
 	 */
@@ -65,15 +56,19 @@ public class FileDialog extends ListActivity {
 
 	private static final int REQUEST_URL = 1;
 	
-	private List<String> path = null;
+	private static final String TAG = "FileDialog";
+
+	private FileListAdapter fileList;
 	private TextView myPath;
-	private ArrayList<HashMap<String, Object>> mList;
+	private ListTask listTask;
+	// Row to scroll to once the directory being listed is complete, or -1
+	private int pendingSelection = -1;
 
 	private InputMethodManager inputManager;
 	private String parentPath;
 	private String currentPath = ROOT;
 
-	private String[] formatFilter = null;
+	private DirectoryLister lister;
 
 	private File selectedFile;
 	private HashMap<String, Integer> lastPositions = new HashMap<String, Integer>();
@@ -99,12 +94,11 @@ public class FileDialog extends ListActivity {
 
 		inputManager = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
 
-		formatFilter = getIntent().getStringArrayExtra(FORMAT_FILTER);
+		lister = new DirectoryLister(getIntent().getStringArrayExtra(FORMAT_FILTER));
 
 		String favPaths[] = getIntent().getStringArrayExtra(FAV_PATHS);
 
-		path = new ArrayList<String>();
-		mList = new ArrayList<HashMap<String, Object>>();
+		fileList = new FileListAdapter(this);
 
 		// Add shortcuts to favorites
 		String storagePath = Environment.getExternalStorageDirectory().getPath();
@@ -112,8 +106,7 @@ public class FileDialog extends ListActivity {
 		    String p = String.format("%s/%s", storagePath, fav);
 		    File file = new File(p);
 		    if (file.exists()) {
-		        addItem(fav, R.drawable.ic_menu_categories);
-		        path.add(p);
+		        fileList.addShortcut(fav, p);
 		    }
 		}
 
@@ -122,21 +115,26 @@ public class FileDialog extends ListActivity {
     		for (String fav : favPaths) {
                 File file = new File(fav);
                 if (file.exists()) {
-                    addItem(fav, R.drawable.ic_menu_categories);
-                    path.add(fav);
+                    fileList.addShortcut(fav, fav);
                 }
     		}
 		}
 
         // XXX: Item to allow loading from URL
 //        String loadUrl = (String) getText(R.string.loadUrl);
-//        addItem(loadUrl, R.drawable.ic_menu_link);
-//        path.add(loadUrl);
-        
-        SimpleAdapter fileList = new SimpleAdapter(this, mList, R.layout.file_dialog_row, new String[] {
-                ITEM_KEY, ITEM_IMAGE }, new int[] { R.id.fdrowtext, R.id.fdrowimage });
+//        fileList.addShortcut(loadUrl, loadUrl);
 
         setListAdapter(fileList);
+        getListView().setRecyclerListener(fileList);
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (listTask != null) {
+			listTask.cancel(true);
+		}
+		PosterLoader.get(this).cancelAll();
+		super.onDestroy();
 	}
 
 	private void getDir(String dirPath) {
@@ -148,104 +146,145 @@ public class FileDialog extends ListActivity {
 		getDirImpl(dirPath);
 
 		if (position != null && useAutoSelection) {
-			getListView().setSelection(position);
+			if (position < fileList.getCount()) {
+				// Shown from the listing cache
+				getListView().setSelection(position);
+			}
+			// Rows keep moving while the listing is merged in
+			pendingSelection = position;
 		}
 	}
 
 	/**
 	 * Monta a estrutura de arquivos e diretorios filhos do diretorio fornecido.
 	 * 
+	 * The directory is scanned in the background and its entries are merged into the list in
+	 * batches, so the first rows show at once however large it is. A directory listed before
+	 * shows at once from the listing cache, and is scanned again only if it changed since.
+	 * 
 	 * @param dirPath
 	 *            Diretorio pai.
 	 */
 	private void getDirImpl(final String dirPath) {
+		if (listTask != null) {
+			listTask.cancel(true);
+		}
+		pendingSelection = -1;
 
 		currentPath = dirPath;
-        path = new ArrayList<String>();
-        mList = new ArrayList<HashMap<String, Object>>();
-
 		File f = new File(currentPath);
-		File[] files = f.listFiles();
-		if (files == null) {
+		if (!f.isDirectory() || !f.canRead()) {
 			currentPath = ROOT;
 			f = new File(currentPath);
-			files = f.listFiles();
 		}
 		myPath.setText(getText(R.string.location) + ": " + currentPath);
 
+		fileList.clear();
 		if (!currentPath.equals(ROOT)) {
-			addItem(ROOT, R.drawable.ic_menu_categories);
-			path.add(ROOT);
-
-			addItem("../", R.drawable.ic_menu_categories);
-			path.add(f.getParent());
+			fileList.addShortcut(ROOT, ROOT);
+			fileList.addShortcut("../", f.getParent());
 			parentPath = f.getParent();
 		}
+		getListView().setSelection(0);
 
-		TreeMap<String, String> dirsMap = new TreeMap<String, String>();
-		TreeMap<String, String> dirsPathMap = new TreeMap<String, String>();
-		TreeMap<String, String> filesMap = new TreeMap<String, String>();
-		TreeMap<String, String> filesPathMap = new TreeMap<String, String>();
-		for (File file : files) {
-			if (file.isDirectory()) {
-				String dirName = file.getName();
-				dirsMap.put(dirName, dirName);
-				dirsPathMap.put(dirName, file.getPath());
-			} else {
-				final String fileName = file.getName();
-				final String fileNameLwr = fileName.toLowerCase();
-				// se ha um filtro de formatos, utiliza-o
-				if (formatFilter != null) {
-					boolean contains = false;
-					for (int i = 0; i < formatFilter.length; i++) {
-						final String formatLwr = formatFilter[i].toLowerCase();
-						if (fileNameLwr.endsWith(formatLwr)) {
-							contains = true;
-							break;
-						}
-					}
-					if (contains) {
-						filesMap.put(fileName, fileName);
-						filesPathMap.put(fileName, file.getPath());
-					}
-					// senao, adiciona todos os arquivos
-				} else {
-					filesMap.put(fileName, fileName);
-					filesPathMap.put(fileName, file.getPath());
-				}
-			}
+		String key = ListingCache.key(f, lister);
+		ListingCache cache = ListingCache.peek();
+		ListingCache.Entry shown = cache != null ? cache.getFromMemory(key) : null;
+		if (shown != null) {
+			fileList.setEntries(shown.directories, shown.files);
 		}
 
-		path.addAll(dirsPathMap.tailMap("").values());
-		path.addAll(filesPathMap.tailMap("").values());
-
-		SimpleAdapter fileList = new SimpleAdapter(this, mList, R.layout.file_dialog_row, new String[] {
-				ITEM_KEY, ITEM_IMAGE }, new int[] { R.id.fdrowtext, R.id.fdrowimage });
+		listTask = new ListTask(key, shown);
+		listTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, f);
+	}
 
-		for (String dir : dirsMap.tailMap("").values()) {
-			addItem(dir, R.drawable.ic_menu_categories);
+	/**
+	 * Lists a directory off the UI thread. A cached listing that is still valid is used as is;
+	 * otherwise the directory is scanned, its entries published in batches unless a stale
+	 * listing is already shown, which is then replaced once the scan is complete. Cancelling
+	 * the task interrupts the scan.
+	 */
+	private class ListTask extends AsyncTask<File, DirectoryLister.Listing, Boolean> {
+		private final String key;
+		// Listing shown before the task started, or null
+		private final ListingCache.Entry shown;
+		// Listing replacing the one shown, or null
+		private ListingCache.Entry result;
+
+		ListTask(String key, ListingCache.Entry shown) {
+			this.key = key;
+			this.shown = shown;
 		}
 
-		for (String file : filesMap.tailMap("").values()) {
-			addItem(file);
+		@Override
+		protected Boolean doInBackground(File... params) {
+			File dir = params[0];
+			ListingCache cache = ListingCache.open(getCacheDir());
+			ListingCache.Entry cached = shown;
+			if (cached == null && cache != null) {
+				cached = cache.get(key, dir);
+			}
+			if (cached != null && cached.isValid(dir)) {
+				if (cached != shown) {
+					result = cached;
+				}
+				return true;
+			}
+
+			// Taken before the scan so that a change during it invalidates the listing
+			long modified = dir.lastModified();
+			long scanStart = System.currentTimeMillis();
+
+			final ArrayList<File> directories = new ArrayList<File>();
+			final ArrayList<File> files = new ArrayList<File>();
+			boolean readable = lister.list(dir, new DirectoryLister.Callback() {
+				public void onBatch(List<File> batchDirectories, List<File> batchFiles) {
+					directories.addAll(batchDirectories);
+					files.addAll(batchFiles);
+					if (shown == null) {
+						publishProgress(new DirectoryLister.Listing(batchDirectories, batchFiles));
+					}
+				}
+			});
+			if (!readable || isCancelled()) {
+				return readable;
+			}
+			Collections.sort(directories, DirectoryLister.NAME_ORDER);
+			Collections.sort(files, DirectoryLister.NAME_ORDER);
+			ListingCache.Entry entry = new ListingCache.Entry(modified, directories, files);
+			if (shown != null) {
+				result = entry;
+			}
+			if (cache != null) {
+				cache.put(key, entry, scanStart);
+			}
+			return true;
 		}
 
-		setListAdapter(fileList);
-	}
+		@Override
+		protected void onProgressUpdate(DirectoryLister.Listing... batches) {
+			if (!isCancelled()) {
+				for (DirectoryLister.Listing batch : batches) {
+					fileList.addEntries(batch.directories, batch.files);
+				}
+			}
+		}
 
-	private void addItem(String fileName, int imageId) {
-		HashMap<String, Object> item = new HashMap<String, Object>();
-		item.put(ITEM_KEY, fileName);
-		if (imageId != -1) {
-		    item.put(ITEM_IMAGE, imageId);
+		@Override
+		protected void onPostExecute(Boolean readable) {
+			if (!readable) {
+				Log.w(TAG, "cannot list " + currentPath);
+			}
+			if (result != null) {
+				fileList.setEntries(result.directories, result.files);
+			}
+			if (pendingSelection >= 0 && pendingSelection < fileList.getCount()) {
+				getListView().setSelection(pendingSelection);
+			}
+			pendingSelection = -1;
 		}
-		mList.add(item);
 	}
 
-    private void addItem(String fileName) {
-        addItem(fileName, -1);
-    }
-
 	/**
 	 * Quando clica no item da lista, deve-se: 1) Se for diretorio, abre seus
 	 * arquivos filhos; 2) Se puder escolher diretorio, define-o como sendo o
@@ -254,19 +293,20 @@ public class FileDialog extends ListActivity {
 	 */
 	@Override
 	protected void onListItemClick(ListView l, View v, int position, long id) {
-        if (path.get(position) == getText(R.string.loadUrl)) {
+        String path = fileList.getPath(position);
+        if (path.equals(getString(R.string.loadUrl))) {
             Intent intent = new Intent(getBaseContext(), UrlDialog.class);
             intent.putExtra(UrlDialog.DEFAULT_URL, getText(R.string.testVideoUrl));
             startActivityForResult(intent, REQUEST_URL);  
         } else {
-        	File file = new File(path.get(position));
+        	File file = new File(path);
         
         	setSelectVisible(v);
         
         	if (file.isDirectory()) {
         		if (file.canRead()) {
         			lastPositions.put(currentPath, position);
-        			getDir(path.get(position));
+        			getDir(path);
         		} else {
         			new AlertDialog.Builder(this).setIcon(R.drawable.icon)
         					.setTitle("[" + file.getName() + "] " + getText(R.string.cant_read_folder))
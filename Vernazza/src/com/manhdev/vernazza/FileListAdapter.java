@@ -0,0 +1,186 @@
+package com.manhdev.vernazza;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Rows of the file dialog: shortcuts first, then subdirectories, then files, the last two
+ * sorted by name.
+ *
+ * <p>Entries arrive in sorted batches while a directory is scanned and are merged into place, so
+ * the list stays sorted at every step without sorting it all again.</p>
+ *
+ * Video files show their poster frame. Set the adapter as the recycler listener of its list so
+ * that posters of rows scrolled away are not loaded.
+ */
+public class FileListAdapter extends BaseAdapter implements AbsListView.RecyclerListener {
+
+    private final LayoutInflater inflater;
+    private final PosterLoader posterLoader;
+    private final DirectoryLister videoFilter = new DirectoryLister(MediaIndexer.VIDEO_FORMATS);
+
+    // Shortcuts such as the root, the parent or favorite folders
+    private final ArrayList<String> shortcutNames = new ArrayList<String>();
+    private final ArrayList<String> shortcutPaths = new ArrayList<String>();
+    private ArrayList<File> directories = new ArrayList<File>();
+    private ArrayList<File> files = new ArrayList<File>();
+
+    private static final class RowHolder {
+        final ImageView image;
+        final TextView text;
+
+        RowHolder(View row) {
+            image = (ImageView) row.findViewById(R.id.fdrowimage);
+            text = (TextView) row.findViewById(R.id.fdrowtext);
+        }
+    }
+
+    public FileListAdapter(Context context) {
+        inflater = LayoutInflater.from(context);
+        posterLoader = PosterLoader.get(context);
+    }
+
+    /**
+     * Removes all rows.
+     */
+    public void clear() {
+        shortcutNames.clear();
+        shortcutPaths.clear();
+        directories = new ArrayList<File>();
+        files = new ArrayList<File>();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Appends a shortcut to a directory, listed ahead of the entries.
+     * @param name      Text of the row.
+     * @param path      Directory opened by the row.
+     */
+    public void addShortcut(String name, String path) {
+        shortcutNames.add(name);
+        shortcutPaths.add(path);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Merges a batch of entries into place.
+     * @param batchDirectories  Subdirectories sorted by name.
+     * @param batchFiles        Files sorted by name.
+     */
+    public void addEntries(List<File> batchDirectories, List<File> batchFiles) {
+        directories = merge(directories, batchDirectories);
+        files = merge(files, batchFiles);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Replaces all entries, keeping the shortcuts.
+     * @param sortedDirectories Subdirectories sorted by name.
+     * @param sortedFiles       Files sorted by name.
+     */
+    public void setEntries(List<File> sortedDirectories, List<File> sortedFiles) {
+        directories = new ArrayList<File>(sortedDirectories);
+        files = new ArrayList<File>(sortedFiles);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the path a row stands for.
+     */
+    public String getPath(int position) {
+        if (position < shortcutPaths.size()) {
+            return shortcutPaths.get(position);
+        }
+        return ((File) getItem(position)).getPath();
+    }
+
+    public int getCount() {
+        return shortcutNames.size() + directories.size() + files.size();
+    }
+
+    public Object getItem(int position) {
+        if (position < shortcutPaths.size()) {
+            return new File(shortcutPaths.get(position));
+        }
+        position -= shortcutPaths.size();
+        if (position < directories.size()) {
+            return directories.get(position);
+        }
+        return files.get(position - directories.size());
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View view, ViewGroup parent) {
+        RowHolder holder;
+        if (view == null) {
+            view = inflater.inflate(R.layout.file_dialog_row, parent, false);
+            holder = new RowHolder(view);
+            view.setTag(holder);
+        } else {
+            holder = (RowHolder) view.getTag();
+        }
+
+        int shortcuts = shortcutNames.size();
+        if (position < shortcuts) {
+            posterLoader.unbind(holder.image);
+            holder.text.setText(shortcutNames.get(position));
+            holder.image.setImageResource(R.drawable.ic_menu_categories);
+        } else if (position < shortcuts + directories.size()) {
+            posterLoader.unbind(holder.image);
+            holder.text.setText(directories.get(position - shortcuts).getName());
+            holder.image.setImageResource(R.drawable.ic_menu_categories);
+        } else {
+            File file = files.get(position - shortcuts - directories.size());
+            holder.text.setText(file.getName());
+            if (videoFilter.accepts(file.getName())) {
+                posterLoader.bind(file.getPath(), holder.image);
+            } else {
+                posterLoader.unbind(holder.image);
+                holder.image.setImageDrawable(null);
+            }
+        }
+        return view;
+    }
+
+    public void onMovedToScrapHeap(View view) {
+        RowHolder holder = (RowHolder) view.getTag();
+        if (holder != null) {
+            posterLoader.unbind(holder.image);
+        }
+    }
+
+    /**
+     * Merges two lists sorted by name into a new one.
+     */
+    private static ArrayList<File> merge(ArrayList<File> sorted, List<File> batch) {
+        if (batch.isEmpty()) {
+            return sorted;
+        }
+        ArrayList<File> merged = new ArrayList<File>(sorted.size() + batch.size());
+        int i = 0;
+        int j = 0;
+        while (i < sorted.size() && j < batch.size()) {
+            if (DirectoryLister.NAME_ORDER.compare(sorted.get(i), batch.get(j)) <= 0) {
+                merged.add(sorted.get(i++));
+            } else {
+                merged.add(batch.get(j++));
+            }
+        }
+        merged.addAll(sorted.subList(i, sorted.size()));
+        merged.addAll(batch.subList(j, batch.size()));
+        return merged;
+    }
+}
@@ -17,22 +17,34 @@
 package com.manhdev.vernazza;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.media.MediaMetadataRetriever;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -42,34 +54,163 @@ import android.widget.ImageView;
  * <p>It requires the INTERNET permission, which should be added to your application's manifest
  * file.</p>
  *
- * A local cache of extracted frames is maintained internally to improve performance.
+ * A local cache of extracted frames is maintained internally to improve performance. Frames are
+ * also written to a disk cache so that reopening a video does not decode them again.
  */
 public class FrameExtractor {
 
     private static final String LOG_TAG = "FrameExtractor";
     public static final int DEFAULT_COUNT = 16;
     private static final long DEFAULT_FRAME_INTERVAL = 10*1000*1000; //10 seconds in usec units
+    static final int FRAME_WIDTH = 320;
+    static final int FRAME_HEIGHT = 240;
+
+    // Intervals up to this one are decoded sequentially, a batch of rows at a time
+    private static final long DENSE_INTERVAL = 500 * 1000;
+    private static final int BATCH_ROWS = 8;
+
+    // One decoder per core; more only contend for the same hardware
+    public static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
 
     private long duration;
-    MediaMetadataRetriever mmr;
-    FileInputStream input;
+    private final RetrieverPool retrievers;
+    private final ExtractionScheduler scheduler;
     private long frameCadence = DEFAULT_FRAME_INTERVAL;
+    // Explicit frame times replacing the fixed cadence, or null
+    private volatile long[] frameTimes;
+    private volatile boolean syncTimeline;
+    private final File cacheDir;
+    private final String path;
+    private final String videoId;
+    private final MemoryCache<FrameKey, Bitmap> frameCache;
+    // Lookups of the frames of this video from the UI thread
+    private final FrameLookup<Bitmap> frameLookup;
+    private final BitmapPool bitmapPool;
+    private volatile boolean progressive = true;
+    private volatile boolean sequentialDecoding = SequentialFrameDecoder.isSupported();
 
-    FrameExtractor(String path) throws FileNotFoundException, IOException {
-        mmr = new MediaMetadataRetriever();
-        input = new FileInputStream(path);
-        mmr.setDataSource(input.getFD());
+    // Frames being decoded by a worker, so that a sequential batch and single frame extractions
+    // never decode the same frame
+    private final ConcurrentHashMap<Long, Boolean> claimedTimes = new ConcurrentHashMap<Long, Boolean>();
 
+    private static final ThreadLocal<SequentialFrameDecoder> sequentialDecoder =
+        new ThreadLocal<SequentialFrameDecoder>() {
+        @Override
+        protected SequentialFrameDecoder initialValue() {
+            return new SequentialFrameDecoder(FRAME_WIDTH, FRAME_HEIGHT);
+        }
+    };
+
+    FrameExtractor(Context context, String path) throws FileNotFoundException, IOException {
+        this(context, path, DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * @param workerCount   Number of frames decoded in parallel, each with its own retriever.
+     */
+    FrameExtractor(Context context, String path, int workerCount)
+            throws FileNotFoundException, IOException {
+        cacheDir = context.getCacheDir();
+        this.path = path;
+        videoId = DiskFrameCache.videoIdentity(path);
+        frameCache = getFrameCache(context);
+        frameLookup = new FrameLookup<Bitmap>(frameCache, videoId);
+        bitmapPool = sBitmapPool;
+        retrievers = new RetrieverPool(path, workerCount);
+
+        MediaMetadataRetriever mmr = acquireRetriever();
         try {
             String durationStr = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
             duration = Integer.parseInt(durationStr);
         } catch (NumberFormatException e) {
             duration = 0;
+        } finally {
+            retrievers.release(mmr);
         }
         Log.i(LOG_TAG, "duration " + Long.toString(duration) + " count " + Integer.toString(getCount()));
+
+        scheduler = new ExtractionScheduler(workerCount, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "FrameExtractor");
+            }
+        });
+        Metrics.get().setScheduler(scheduler);
+    }
+
+    private MediaMetadataRetriever acquireRetriever() throws IOException {
+        try {
+            return retrievers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    /**
+     * Stops pending extractions and releases the decoders. The extractor cannot be used
+     * afterwards.
+     */
+    public void release() {
+        handler.removeCallbacks(purger);
+        Metrics.get().clearScheduler(scheduler);
+        scheduler.shutdown();
+        retrievers.close();
+    }
+
+    /**
+     * Tells the extractor which rows are on screen, so that their frames are extracted first
+     * and pending extractions for rows scrolled out of view are dropped.
+     * @param first     First visible row.
+     * @param last      Last visible row, inclusive.
+     */
+    public void setVisibleRange(int first, int last) {
+        scheduler.setVisibleRange(first, last);
+    }
+
+    /**
+     * Sets how many rows beyond the visible ones may be prefetched. Pending extractions further
+     * away are dropped.
+     */
+    public void setPrefetchWindow(int rows) {
+        scheduler.setRetainMargin(ExtractionScheduler.DEFAULT_RETAIN_MARGIN + rows);
+    }
+
+    /**
+     * Returns how many frames the memory cache holds, which bounds useful prefetching.
+     */
+    public int getCacheCapacity() {
+        return (int) (frameCache.maxSize() / (FRAME_WIDTH * FRAME_HEIGHT * 4));
+    }
+
+    /**
+     * Extracts the specified frame into the cache at low priority, ahead of its row being bound.
+     * @param index     Index of frame.
+     */
+    public void prefetch(int index) {
+        if (index < 0 || index >= getCount()) {
+            return;
+        }
+        long timeUs = getFrameTimeOffset(index);
+        if (frameLookup.contains(timeUs, true) || frameLookup.contains(timeUs, false)
+                || getPendingTask(timeUs) != null) {
+            return;
+        }
+        FrameExtractorTask task = new FrameExtractorTask(index, timeUs,
+                ExtractionScheduler.PRIORITY_PREFETCH);
+        pendingTasks.put(timeUs, task);
+        scheduler.submit(task);
     }
 
     public int getCount() {
+        long[] times = frameTimes;
+        if (times != null) {
+            return times.length;
+        }
         return (int) (duration / (frameCadence/1000));
     }
     
@@ -79,15 +220,104 @@ public class FrameExtractor {
      * @return          Time offset in usecs.
      */
     public long getFrameTimeOffset(int index) {
+        long[] times = frameTimes;
+        if (times != null) {
+            return times[index];
+        }
         return index * frameCadence;
     }
 
+    /**
+     * Returns the index of the frame at or before the specified time offset.
+     * @param timeUs    Time offset in usecs.
+     * @return          Index of frame.
+     */
+    public int getFrameIndex(long timeUs) {
+        long[] times = frameTimes;
+        int index;
+        if (times != null) {
+            index = Arrays.binarySearch(times, timeUs);
+            if (index < 0) {
+                index = -index - 2;
+            }
+        } else {
+            index = (int) (timeUs / frameCadence);
+        }
+        return Math.max(0, Math.min(index, getCount() - 1));
+    }
+
     /**
      * Set interval between key frames in list
      * @param usecs     Interval in usecs
      */
     public void setInterval(long usecs) {
+        if (usecs == frameCadence && frameTimes == null) {
+            return;
+        }
         frameCadence = usecs;
+        frameTimes = null;
+        cancelPendingTasks();
+    }
+
+    /**
+     * Shows the frames at the given times instead of frames at a fixed interval.
+     * @param usecs     Ascending frame time offsets in usecs.
+     * @param syncFrames True if every time is that of a sync frame, which then needs no
+     *                   inter-frame decoding.
+     */
+    public void setFrameTimes(long[] usecs, boolean syncFrames) {
+        frameTimes = usecs;
+        syncTimeline = syncFrames;
+        cancelPendingTasks();
+    }
+
+    /**
+     * Returns the times of the video's sync frames, read from the container on first use and
+     * cached per video afterwards. Blocks, not for the UI thread.
+     * @return          Ascending sync frame times in usecs.
+     */
+    public long[] loadKeyFrameTimes() throws IOException {
+        TimelineCache timelines = TimelineCache.open(cacheDir);
+        long[] times = timelines != null ? timelines.get(videoId, TimelineCache.KEY_FRAMES) : null;
+        if (times == null) {
+            if (!KeyFrameIndex.isSupported()) {
+                throw new IOException("key frame index not supported");
+            }
+            times = KeyFrameIndex.read(path);
+            if (timelines != null) {
+                timelines.put(videoId, TimelineCache.KEY_FRAMES, times);
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Returns the start times of the scenes of the video, analysed on first use and cached per
+     * video afterwards. Blocks, not for the UI thread.
+     * @return          Ascending scene start times in usecs.
+     */
+    public long[] loadSceneTimes() throws IOException {
+        TimelineCache timelines = TimelineCache.open(cacheDir);
+        long[] times = timelines != null ? timelines.get(videoId, TimelineCache.SCENES) : null;
+        if (times == null) {
+            if (!SceneDetector.isSupported()) {
+                throw new IOException("scene detection not supported");
+            }
+            times = SceneDetector.detect(path);
+            if (timelines != null && !Thread.currentThread().isInterrupted()) {
+                timelines.put(videoId, TimelineCache.SCENES, times);
+            }
+        }
+        return times;
+    }
+
+    private void cancelPendingTasks() {
+        // Queued jobs refer to rows of the old timeline. Frames on timestamps shared by both
+        // stay cached and are bound again as is.
+        for (FrameExtractorTask task : pendingTasks.values()) {
+            task.cancel();
+        }
+        pendingTasks.clear();
     }
     
     /**
@@ -108,14 +338,53 @@ public class FrameExtractor {
      */
     public void extract(int index, ImageView imageView) {
         resetPurgeTimer();
-        Bitmap bitmap = getBitmapFromCache(index);
+        long timeUs = getFrameTimeOffset(index);
+        Bitmap bitmap = getBitmapFromCache(timeUs, true);
 
-        if (bitmap == null) {
-            forceExtract(index, imageView);
-        } else {
-            cancelPotentialDownload(index, imageView);
-            imageView.setImageBitmap(bitmap);
+        if (bitmap != null) {
+            Metrics.get().memoryHits.incrementAndGet();
+            cancelPotentialDownload(timeUs, imageView);
+            if (!isShowing(imageView, bitmap)) {
+                bindBitmap(imageView, bitmap);
+            }
+            return;
         }
+
+        Bitmap preview = progressive ? getBitmapFromCache(timeUs, false) : null;
+        if (preview == null) {
+            Metrics.get().memoryMisses.incrementAndGet();
+            forceExtract(index, timeUs, imageView);
+            return;
+        }
+        Metrics.get().previewHits.incrementAndGet();
+        if (cancelPotentialDownload(timeUs, imageView)) {
+            // Show the sync frame and have the exact one replace it if the row stays visible
+            FrameExtractorTask task = getPendingTask(timeUs);
+            if (task == null) {
+                task = new FrameExtractorTask(index, timeUs, ExtractionScheduler.PRIORITY_REFINE);
+                pendingTasks.put(timeUs, task);
+                scheduler.submit(task);
+            }
+            task.attach(imageView);
+            bindPreview(imageView, preview, task);
+        }
+    }
+
+    /**
+     * Enables progressive extraction: a cheap sync frame is shown first and replaced by the
+     * exact frame once scrolling settles, for rows still visible by then.
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * Tells the extractor whether the list is scrolling. Exact frames replacing previews are
+     * only extracted while it is not.
+     */
+    public void setScrolling(boolean scrolling) {
+        scheduler.setPriorityLimit(scrolling ? ExtractionScheduler.PRIORITY_PREFETCH
+                : ExtractionScheduler.PRIORITY_REFINE);
     }
 
     /*
@@ -130,31 +399,57 @@ public class FrameExtractor {
      * Same as extract but the image is always extracted and the cache is not used.
      * Kept private at the moment as its interest is not clear.
      */
-    private void forceExtract(int index, ImageView imageView) {
-        if (cancelPotentialDownload(index, imageView)) {
-            FrameExtractorTask task;
-            task = new FrameExtractorTask(imageView);
-            PendingDrawable downloadedDrawable = new PendingDrawable(task);
-            imageView.setImageDrawable(downloadedDrawable);
+    private void forceExtract(int index, long timeUs, ImageView imageView) {
+        if (cancelPotentialDownload(timeUs, imageView)) {
+            FrameExtractorTask task = getPendingTask(timeUs);
+            if (task != null) {
+                // Already being prefetched, just let it bind on completion
+                scheduler.setPriority(task, ExtractionScheduler.PRIORITY_VISIBLE);
+            } else {
+                task = new FrameExtractorTask(index, timeUs, ExtractionScheduler.PRIORITY_VISIBLE);
+                pendingTasks.put(timeUs, task);
+                scheduler.submit(task);
+            }
+            task.attach(imageView);
+            Bitmap standIn = getNearestBitmapFromCache(timeUs, STAND_IN_MAX_DISTANCE);
+            if (standIn != null) {
+                bindPreview(imageView, standIn, task);
+            } else {
+                PendingDrawable downloadedDrawable = new PendingDrawable(task);
+                releaseBitmap(imageView);
+                imageView.setImageDrawable(downloadedDrawable);
+            }
             imageView.setMinimumHeight(156);
-            task.execute(index);
         }
     }
 
     /**
-     * Returns true if the current extraction has been canceled or if there was no extraction in
-     * progress on this image view.
-     * Returns false if the extraction in progress deals with the same url. The extraction is not
+     * @return The queued or running extraction of the given frame, or null if there is none.
+     */
+    private FrameExtractorTask getPendingTask(long timeUs) {
+        FrameExtractorTask task = pendingTasks.get(timeUs);
+        if (task != null && task.isCancelled()) {
+            pendingTasks.remove(timeUs);
+            return null;
+        }
+        return task;
+    }
+
+    /**
+     * Returns true if the current extraction has been canceled, or dropped by the scheduler, or if
+     * there was no extraction in progress on this image view.
+     * Returns false if the extraction in progress deals with the same frame. The extraction is not
      * stopped in that case.
      */
-    private static boolean cancelPotentialDownload(int index, ImageView imageView) {
+    private static boolean cancelPotentialDownload(long timeUs, ImageView imageView) {
         FrameExtractorTask frameExtractorTask = getFrameExtractorTask(imageView);
 
-        if (frameExtractorTask != null) {
-            if (frameExtractorTask.index != index) {
-                frameExtractorTask.cancel(true);
+        if (frameExtractorTask != null && !frameExtractorTask.isCancelled()) {
+            if (frameExtractorTask.timeUs != timeUs) {
+                frameExtractorTask.cancel();
+                Metrics.get().cancellations.incrementAndGet();
             } else {
-                // The same URL is already being extracted.
+                // The same frame is already being extracted.
                 return false;
             }
         }
@@ -169,82 +464,348 @@ public class FrameExtractor {
     private static FrameExtractorTask getFrameExtractorTask(ImageView imageView) {
         if (imageView != null) {
             Drawable drawable = imageView.getDrawable();
-            if (drawable instanceof PendingDrawable) {
-                PendingDrawable downloadedDrawable = (PendingDrawable)drawable;
+            if (drawable instanceof TaskDrawable) {
+                TaskDrawable downloadedDrawable = (TaskDrawable)drawable;
                 return downloadedDrawable.getFrameExtractorTask();
             }
         }
         return null;
     }
 
+    /**
+     * Binds a cached frame to imageView, keeping the pool from reusing it while it is shown.
+     * The view keeps the same drawable from one frame to the next, so binding a recycled row
+     * allocates nothing.
+     */
+    private void bindBitmap(ImageView imageView, Bitmap bitmap) {
+        releaseBitmap(imageView);
+        if (bitmap == null) {
+            imageView.setImageDrawable(null);
+            return;
+        }
+        bitmapPool.markDisplayed(bitmap);
+        FrameDrawable drawable = frameDrawables.get(imageView);
+        if (drawable == null) {
+            drawable = new FrameDrawable();
+            frameDrawables.put(imageView, drawable);
+        }
+        boolean resized = drawable.setBitmap(bitmap);
+        if (imageView.getDrawable() != drawable) {
+            imageView.setImageDrawable(drawable);
+        } else if (resized) {
+            // Have the view measure and scale the drawable again
+            imageView.setImageDrawable(null);
+            imageView.setImageDrawable(drawable);
+        }
+    }
+
+    /**
+     * Binds a sync frame preview to imageView while task extracts the exact frame.
+     */
+    private void bindPreview(ImageView imageView, Bitmap bitmap, FrameExtractorTask task) {
+        releaseBitmap(imageView);
+        bitmapPool.markDisplayed(bitmap);
+        imageView.setImageDrawable(new PreviewDrawable(imageView.getResources(), bitmap, task));
+    }
 
-    Bitmap extractFrame(int index) {
+    /**
+     * Returns true if imageView already shows bitmap as a plain frame, so there is nothing to
+     * rebind.
+     */
+    private static boolean isShowing(ImageView imageView, Bitmap bitmap) {
+        Drawable drawable = imageView.getDrawable();
+        return drawable instanceof FrameDrawable
+                && ((FrameDrawable) drawable).getBitmap() == bitmap;
+    }
+
+    /**
+     * Lets the pool reuse the frame imageView currently shows, once no other view shows it.
+     */
+    private void releaseBitmap(ImageView imageView) {
+        Drawable drawable = imageView.getDrawable();
+        Bitmap bitmap = null;
+        if (drawable instanceof FrameDrawable) {
+            bitmap = ((FrameDrawable) drawable).getBitmap();
+            ((FrameDrawable) drawable).setBitmap(null);
+        } else if (drawable instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable) drawable).getBitmap();
+        }
+        if (bitmap != null) {
+            bitmapPool.markHidden(bitmap);
+        }
+    }
+
+    /**
+     * Scales a decoded frame into a pooled bitmap and recycles the decoded one.
+     */
+    private Bitmap scaleFrame(Bitmap frame) {
+        Bitmap scaled = bitmapPool.get(FRAME_WIDTH, FRAME_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = scaleCanvas.get();
+        canvas.setBitmap(scaled);
+        canvas.drawBitmap(frame, null, FRAME_RECT, SCALE_PAINT);
+        canvas.setBitmap(null);
+        frame.recycle();
+        return scaled;
+    }
+
+    /**
+     * Extracts a frame, from the disk cache if possible.
+     * @param timeOffset    Time offset of the frame in usecs.
+     * @param exact         False to accept the nearest preceding sync frame, which decodes
+     *                      without inter-frame work.
+     * @param sync          True if timeOffset is known to be that of a sync frame.
+     */
+    Bitmap extractFrame(long timeOffset, boolean exact, boolean sync) {
+        Metrics metrics = Metrics.get();
+        DiskFrameCache diskCache = DiskFrameCache.open(cacheDir);
+        if (diskCache != null) {
+            long start = System.nanoTime();
+            Bitmap cached = diskCache.get(videoId, timeOffset, bitmapPool);
+            if (cached != null) {
+                metrics.diskRead.record(System.nanoTime() - start);
+                metrics.diskHits.incrementAndGet();
+                return cached;
+            }
+            metrics.diskMisses.incrementAndGet();
+        }
+
+        MediaMetadataRetriever mmr = null;
         try {
-            long timeOffset = 0;
-            timeOffset = getFrameTimeOffset(index);
-            Log.i(LOG_TAG, "getFrameAtTime timeOffset " + Long.toString(timeOffset));
-            Bitmap b = mmr.getFrameAtTime(timeOffset, MediaMetadataRetriever.OPTION_CLOSEST);
+            long start = System.nanoTime();
+            mmr = acquireRetriever();
+            long acquired = System.nanoTime();
+            metrics.retrieverWait.record(acquired - start);
+            Bitmap b = mmr.getFrameAtTime(timeOffset, exact && !sync
+                    ? MediaMetadataRetriever.OPTION_CLOSEST : MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            long decoded = System.nanoTime();
+            metrics.frameDecode.record(decoded - acquired);
             if (b != null) {
-                Log.i(LOG_TAG, "scaling ");
-                return Bitmap.createScaledBitmap(b, 320, 240, true);
+                Bitmap scaled = scaleFrame(b);
+                metrics.scale.record(System.nanoTime() - decoded);
+                // Only exact frames are worth keeping, previews are cheap to extract again
+                if (diskCache != null && exact) {
+                    diskCache.put(videoId, timeOffset, scaled);
+                }
+                return scaled;
             }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
         } catch (IllegalArgumentException e) {
             Log.e(LOG_TAG, e.toString());
         } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    Log.e(LOG_TAG, e.toString());
-                }
+            if (mmr != null) {
+                retrievers.release(mmr);
             }
         }
+        metrics.decodeFailures.incrementAndGet();
         return null;
     } 
 
     /**
-     * The actual AsyncTask that will asynchronously extract the frame.
+     * Decodes a run of up to {@link #BATCH_ROWS} consecutive frames in a single sequential pass.
+     * The frames are delivered to their pending extractions, or cached if there are none.
+     * @param firstUs   Time offset of the first frame, claimed by the caller, who releases it.
+     * @param cadence   Interval between the frames in usecs.
+     * @return True if the first frame was delivered, false if the caller has to extract it.
      */
-    class FrameExtractorTask extends AsyncTask<Integer, Void, Bitmap> {
-        private int index;
-        private final WeakReference<ImageView> imageViewReference;
+    private boolean extractBatch(final long firstUs, long cadence) {
+        // Claim the following frames that are not available yet and nobody else decodes
+        long durationUs = duration * 1000;
+        int count = 1;
+        while (count < BATCH_ROWS) {
+            long timeUs = firstUs + count * cadence;
+            if (timeUs >= durationUs || frameCache.contains(new FrameKey(videoId, timeUs, true))
+                    || isOnDisk(timeUs) || claimedTimes.putIfAbsent(timeUs, Boolean.TRUE) != null) {
+                break;
+            }
+            count++;
+        }
+        final long lastUs = firstUs + (count - 1) * cadence;
+        final boolean[] produced = new boolean[count];
+        final DiskFrameCache diskCache = DiskFrameCache.open(cacheDir);
+        final Metrics metrics = Metrics.get();
+        // Time the previous frame was delivered, or the run started
+        final long[] last = { System.nanoTime() };
 
-        public FrameExtractorTask(ImageView imageView) {
+        try {
+            sequentialDecoder.get().decode(path, firstUs, lastUs, cadence,
+                    new SequentialFrameDecoder.FrameSink() {
+                public boolean onFrame(final long timeUs, int[] argb) {
+                    long now = System.nanoTime();
+                    // The first frame pays for seeking to the sync frame and decoding up to it
+                    (timeUs == firstUs ? metrics.sequentialSeek : metrics.sequentialFrame)
+                            .record(now - last[0]);
+                    last[0] = now;
+                    final Bitmap bitmap = bitmapPool.get(FRAME_WIDTH, FRAME_HEIGHT, Bitmap.Config.ARGB_8888);
+                    bitmap.setPixels(argb, 0, FRAME_WIDTH, 0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+                    if (diskCache != null) {
+                        diskCache.put(videoId, timeUs, bitmap);
+                    }
+                    handler.post(new Runnable() {
+                        public void run() {
+                            onBatchFrame(timeUs, bitmap);
+                        }
+                    });
+                    produced[(int) ((timeUs - firstUs) / cadence)] = true;
+                    return true;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+            sequentialDecoding = false;
+        } catch (RuntimeException e) {
+            // Unsupported output format or codec failure, extract frame by frame from now on
+            Log.e(LOG_TAG, e.toString());
+            sequentialDecoding = false;
+        } finally {
+            final long[] missing = new long[count];
+            int missingCount = 0;
+            for (int i = 1; i < count; i++) {
+                long timeUs = firstUs + i * cadence;
+                claimedTimes.remove(timeUs);
+                if (!produced[i]) {
+                    missing[missingCount++] = timeUs;
+                }
+            }
+            final int missed = missingCount;
+            handler.post(new Runnable() {
+                public void run() {
+                    onBatchDone(missing, missed);
+                }
+            });
+        }
+        return produced[0];
+    }
+
+    /**
+     * Completes the pending extraction of a frame decoded by a sequential batch.
+     */
+    private void onBatchFrame(long timeUs, Bitmap bitmap) {
+        FrameExtractorTask task = getPendingTask(timeUs);
+        if (task == null) {
+            addBitmapToCache(timeUs, true, bitmap);
+        } else {
+            task.onExtracted(bitmap, true);
+            // Keep the scheduler from running it again
+            task.cancel();
+        }
+    }
+
+    /**
+     * Resubmits the extractions deferred to a batch that did not produce their frame.
+     */
+    private void onBatchDone(long[] missing, int count) {
+        for (int i = 0; i < count; i++) {
+            FrameExtractorTask task = getPendingTask(missing[i]);
+            if (task != null && task.deferred) {
+                task.deferred = false;
+                scheduler.submit(task);
+            }
+        }
+    }
+
+    /**
+     * Returns true if an exact frame for timeOffset is on disk.
+     */
+    private boolean isOnDisk(long timeOffset) {
+        DiskFrameCache diskCache = DiskFrameCache.open(cacheDir);
+        return diskCache != null && diskCache.contains(videoId, timeOffset);
+    }
+
+    /**
+     * The job that extracts the frame on a scheduler worker and binds it on the UI thread.
+     */
+    class FrameExtractorTask extends ExtractionScheduler.Job {
+        private final long timeUs;
+        // Null while the frame is only being prefetched. Only accessed on the UI thread.
+        private WeakReference<ImageView> imageViewReference;
+        // Set when the job found its frame claimed by a sequential batch
+        private volatile boolean deferred;
+
+        public FrameExtractorTask(int index, long timeUs, int priority) {
+            super(index, priority);
+            this.timeUs = timeUs;
+        }
+
+        /**
+         * Binds the extracted frame to imageView once available.
+         */
+        void attach(ImageView imageView) {
             imageViewReference = new WeakReference<ImageView>(imageView);
         }
 
         /**
          * Actual extraction method.
          */
-        @Override
-        protected Bitmap doInBackground(Integer... params) {
-            index = params[0];
-            return extractFrame(index);
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            if (claimedTimes.putIfAbsent(timeUs, Boolean.TRUE) != null) {
+                // A sequential batch is decoding this frame and resubmits us if it fails
+                deferred = true;
+                return;
+            }
+            try {
+                if (sequentialDecoding && frameTimes == null && frameCadence <= DENSE_INTERVAL
+                        && !isOnDisk(timeUs) && extractBatch(timeUs, frameCadence)) {
+                    return;
+                }
+                // No batch, or it failed before this frame: extract it on its own
+                if (isCancelled()) {
+                    return;
+                }
+                // Sync frames are exact by themselves. Previews only pay off when the exact frame
+                // is not already on disk.
+                final boolean sync = syncTimeline && frameTimes != null;
+                final boolean exact = sync || priority == ExtractionScheduler.PRIORITY_REFINE
+                        || !progressive || isOnDisk(timeUs);
+                final Bitmap bitmap = extractFrame(timeUs, exact, sync);
+                handler.post(new Runnable() {
+                    public void run() {
+                        onExtracted(bitmap, exact);
+                    }
+                });
+            } finally {
+                claimedTimes.remove(timeUs);
+            }
         }
 
         /**
          * Once the frame is extracted, associates it to the imageView
          */
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            if (isCancelled()) {
-                bitmap = null;
+        private void onExtracted(Bitmap bitmap, boolean exact) {
+            if (pendingTasks.get(timeUs) == this) {
+                pendingTasks.remove(timeUs);
             }
+            // Cache the frame even if the row moved on, the work is done
+            addBitmapToCache(timeUs, exact, bitmap);
 
-            addBitmapToCache(index, bitmap);
-
-            if (imageViewReference != null) {
-                ImageView imageView = imageViewReference.get();
-                FrameExtractorTask frameExtractorTask = getFrameExtractorTask(imageView);
-                // Change bitmap only if this process is still associated with it
-                // Or if we don't use any bitmap to task association (NO_DOWNLOADED_DRAWABLE mode)
-                if (this == frameExtractorTask) {
-                    imageView.setImageBitmap(bitmap);
-                }
+            ImageView imageView = imageViewReference != null ? imageViewReference.get() : null;
+            FrameExtractorTask frameExtractorTask = getFrameExtractorTask(imageView);
+            // Change bitmap only if this process is still associated with it
+            if (this != frameExtractorTask || isCancelled()) {
+                return;
+            }
+            if (exact || bitmap == null) {
+                bindBitmap(imageView, bitmap);
+            } else {
+                FrameExtractorTask refine = new FrameExtractorTask(position, timeUs,
+                        ExtractionScheduler.PRIORITY_REFINE);
+                pendingTasks.put(timeUs, refine);
+                refine.attach(imageView);
+                bindPreview(imageView, bitmap, refine);
+                scheduler.submit(refine);
             }
         }
     }
 
+    /**
+     * Drawable holding the extraction task of the frame its ImageView is waiting for.
+     */
+    interface TaskDrawable {
+        FrameExtractorTask getFrameExtractorTask();
+    }
 
     /**
      * A fake Drawable that will be attached to the imageView while the extraction is in progress.
@@ -253,7 +814,7 @@ public class FrameExtractor {
      * if a new binding is required, and makes sure that only the last started extraction process can
      * bind its result, independently of the extraction finish order.</p>
      */
-    static class PendingDrawable extends ColorDrawable {
+    static class PendingDrawable extends ColorDrawable implements TaskDrawable {
         private final WeakReference<FrameExtractorTask> frameExtractorTaskReference;
 
         public PendingDrawable(FrameExtractorTask frameExtractorTask) {
@@ -267,35 +828,126 @@ public class FrameExtractor {
         }
     }
 
+    /**
+     * Shows a cached frame scaled to its bounds, as a BitmapDrawable would, except that the frame
+     * can be replaced so that a view reuses its drawable.
+     */
+    static class FrameDrawable extends Drawable {
+        private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        private Bitmap bitmap;
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * Replaces the frame shown, null for none.
+         * @return True if the intrinsic size of the drawable changed.
+         */
+        public boolean setBitmap(Bitmap bitmap) {
+            boolean resized = getIntrinsicWidth() != (bitmap != null ? bitmap.getWidth() : -1)
+                    || getIntrinsicHeight() != (bitmap != null ? bitmap.getHeight() : -1);
+            this.bitmap = bitmap;
+            invalidateSelf();
+            return resized;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (bitmap != null) {
+                canvas.drawBitmap(bitmap, null, getBounds(), paint);
+            }
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return bitmap != null ? bitmap.getWidth() : -1;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return bitmap != null ? bitmap.getHeight() : -1;
+        }
+
+        @Override
+        public int getOpacity() {
+            return bitmap != null && !bitmap.hasAlpha() && paint.getAlpha() == 255
+                    ? PixelFormat.OPAQUE : PixelFormat.TRANSLUCENT;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            paint.setAlpha(alpha);
+            invalidateSelf();
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            paint.setColorFilter(colorFilter);
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * A sync frame preview, or the nearest cached frame, shown in place of the exact frame while
+     * the latter is being extracted.
+     */
+    static class PreviewDrawable extends BitmapDrawable implements TaskDrawable {
+        private final WeakReference<FrameExtractorTask> frameExtractorTaskReference;
+
+        public PreviewDrawable(Resources res, Bitmap bitmap, FrameExtractorTask frameExtractorTask) {
+            super(res, bitmap);
+            frameExtractorTaskReference =
+                new WeakReference<FrameExtractorTask>(frameExtractorTask);
+        }
+
+        public FrameExtractorTask getFrameExtractorTask() {
+            return frameExtractorTaskReference.get();
+        }
+    }
+
     /*
      * Cache-related fields and methods.
      * 
-     * We use a hard and a soft cache. A soft reference cache is too aggressively cleared by the
-     * Garbage Collector.
+     * A single memory cache is shared by all extractors. It is keyed by video identity and time
+     * offset, so frames of another video or interval are never bound to the wrong row, and it is
+     * bounded by the bytes of its bitmaps rather than by a count of entries.
      */
     
-    private static final int HARD_CACHE_CAPACITY = 10;
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 8;
+    private static final int BITMAP_POOL_HEAP_FRACTION = 32;
     private static final int DELAY_BEFORE_PURGE = 10 * 1000; // in milliseconds
 
-    // Hard cache, with a fixed maximum capacity and a life duration
-    private final HashMap<Integer, Bitmap> sHardBitmapCache =
-        new LinkedHashMap<Integer, Bitmap>(HARD_CACHE_CAPACITY / 2, 0.75f, true) {
+    // Frames further away than this say little about the row they would stand in for
+    private static final long STAND_IN_MAX_DISTANCE = DEFAULT_FRAME_INTERVAL;
+
+    private static MemoryCache<FrameKey, Bitmap> sFrameCache;
+
+    // Frames evicted from the cache, reused as targets for scaling and disk decoding
+    private static BitmapPool sBitmapPool;
+
+    private static final Rect FRAME_RECT = new Rect(0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static final ThreadLocal<Canvas> scaleCanvas = new ThreadLocal<Canvas>() {
         @Override
-        protected boolean removeEldestEntry(LinkedHashMap.Entry<Integer, Bitmap> eldest) {
-            if (size() > HARD_CACHE_CAPACITY) {
-                // Entries push-out of hard reference cache are transferred to soft reference cache
-                sSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-                return true;
-            } else
-                return false;
+        protected Canvas initialValue() {
+            return new Canvas();
         }
     };
 
-    // Soft cache for bitmaps kicked out of hard cache
-    private final static ConcurrentHashMap<Integer, SoftReference<Bitmap>> sSoftBitmapCache =
-        new ConcurrentHashMap<Integer, SoftReference<Bitmap>>(HARD_CACHE_CAPACITY / 2);
+    private final Handler handler = new Handler(Looper.getMainLooper());
 
-    private final Handler purgeHandler = new Handler();
+    // Time offsets of the frames of this video put in the memory cache, some of which may have
+    // been evicted since. Only accessed on the UI thread.
+    private final TreeSet<Long> cachedTimes = new TreeSet<Long>();
+
+    // Drawable each view binds its frames with. Only accessed on the UI thread.
+    private final WeakHashMap<ImageView, FrameDrawable> frameDrawables =
+            new WeakHashMap<ImageView, FrameDrawable>();
+
+    // Extractions queued or running, by frame time offset. Only accessed on the UI thread.
+    private final HashMap<Long, FrameExtractorTask> pendingTasks = new HashMap<Long, FrameExtractorTask>();
 
     private final Runnable purger = new Runnable() {
         public void run() {
@@ -303,49 +955,107 @@ public class FrameExtractor {
         }
     };
 
+    private static synchronized MemoryCache<FrameKey, Bitmap> getFrameCache(Context context) {
+        if (sFrameCache == null) {
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            long heapBytes = am.getMemoryClass() * 1024L * 1024L;
+            sBitmapPool = new BitmapPool(heapBytes / BITMAP_POOL_HEAP_FRACTION);
+            sFrameCache = new MemoryCache<FrameKey, Bitmap>(heapBytes / MEMORY_CACHE_HEAP_FRACTION) {
+                @Override
+                protected int sizeOf(FrameKey key, Bitmap bitmap) {
+                    return bitmap.getRowBytes() * bitmap.getHeight();
+                }
+
+                @Override
+                protected void entryEvicted(FrameKey key, Bitmap bitmap) {
+                    sBitmapPool.put(bitmap);
+                }
+            };
+        }
+        return sFrameCache;
+    }
+
     /**
      * Adds this bitmap to the cache.
      * @param bitmap The newly extracted frame.
      */
-    private void addBitmapToCache(int index, Bitmap bitmap) {
+    private void addBitmapToCache(long timeUs, boolean exact, Bitmap bitmap) {
         if (bitmap != null) {
-            synchronized (sHardBitmapCache) {
-                sHardBitmapCache.put(index, bitmap);
+            frameCache.put(new FrameKey(videoId, timeUs, exact), bitmap);
+            cachedTimes.add(timeUs);
+            if (exact) {
+                // The preview is superseded
+                bitmapPool.put(frameCache.remove(new FrameKey(videoId, timeUs, false)));
             }
         }
     }
 
     /**
-     * @param url The URL of the image that will be retrieved from the cache.
+     * @param timeUs Time offset of the frame that will be retrieved from the cache.
+     * @param exact False to retrieve the sync frame preview.
      * @return The cached bitmap or null if it was not found.
      */
-    private Bitmap getBitmapFromCache(int index) {
-        // First try the hard reference cache
-        synchronized (sHardBitmapCache) {
-            final Bitmap bitmap = sHardBitmapCache.get(index);
+    private Bitmap getBitmapFromCache(long timeUs, boolean exact) {
+        return frameLookup.get(timeUs, exact);
+    }
+
+    /**
+     * Returns the cached frame of this video closest to timeUs, exact or preview.
+     * @param timeUs        Time offset in usecs.
+     * @param maxDistance   Maximum distance from timeUs of the returned frame, in usecs.
+     * @return The cached bitmap or null if there is none close enough.
+     */
+    Bitmap getNearestBitmapFromCache(long timeUs, long maxDistance) {
+        while (true) {
+            Long before = cachedTimes.floor(timeUs);
+            Long after = cachedTimes.ceiling(timeUs);
+            Long nearest;
+            if (before == null) {
+                nearest = after;
+            } else if (after == null) {
+                nearest = before;
+            } else {
+                nearest = timeUs - before <= after - timeUs ? before : after;
+            }
+            if (nearest == null || Math.abs(nearest - timeUs) > maxDistance) {
+                return null;
+            }
+            Bitmap bitmap = getBitmapFromCache(nearest, true);
+            if (bitmap == null) {
+                bitmap = getBitmapFromCache(nearest, false);
+            }
             if (bitmap != null) {
-                // Bitmap found in hard cache
-                // Move element to first position, so that it is removed last
-                sHardBitmapCache.remove(index);
-                sHardBitmapCache.put(index, bitmap);
                 return bitmap;
             }
+            // Evicted since, forget it
+            cachedTimes.remove(nearest);
         }
+    }
 
-        // Then try the soft reference cache
-        SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(index);
-        if (bitmapReference != null) {
-            final Bitmap bitmap = bitmapReference.get();
-            if (bitmap != null) {
-                // Bitmap found in soft cache
-                return bitmap;
-            } else {
-                // Soft reference has been Garbage Collected
-                sSoftBitmapCache.remove(index);
-            }
+    /**
+     * Shows in imageView the cached frame of this video closest to timeUs, however far, without
+     * extracting anything. Cheap enough to call on every display frame.
+     * @param timeUs    Time offset in usecs.
+     * @return True if a frame is shown, false if none is cached.
+     */
+    public boolean showNearestFrame(long timeUs, ImageView imageView) {
+        Bitmap bitmap = getNearestBitmapFromCache(timeUs, Long.MAX_VALUE);
+        if (bitmap == null) {
+            return false;
+        }
+        if (!isShowing(imageView, bitmap)) {
+            bindBitmap(imageView, bitmap);
         }
+        return true;
+    }
 
-        return null;
+    /**
+     * Clears a view filled by {@link #showNearestFrame(long, ImageView)}, letting the pool reuse
+     * the frame it showed.
+     */
+    public void clearFrame(ImageView imageView) {
+        releaseBitmap(imageView);
+        imageView.setImageDrawable(null);
     }
  
     /**
@@ -353,15 +1063,24 @@ public class FrameExtractor {
      * efficiency reasons, the cache will automatically be cleared after a certain inactivity delay.
      */
     public void clearCache() {
-        sHardBitmapCache.clear();
-        sSoftBitmapCache.clear();
+        Log.i(LOG_TAG, frameCache.toString() + " " + bitmapPool.toString());
+        frameCache.trimToSize(0);
+        cachedTimes.clear();
+
+        // Forget extractions the scheduler dropped
+        Iterator<FrameExtractorTask> it = pendingTasks.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isCancelled()) {
+                it.remove();
+            }
+        }
     }
 
     /**
      * Allow a new delay before the automatic cache clear is done.
      */
     private void resetPurgeTimer() {
-        purgeHandler.removeCallbacks(purger);
-        purgeHandler.postDelayed(purger, DELAY_BEFORE_PURGE);
+        handler.removeCallbacks(purger);
+        handler.postDelayed(purger, DELAY_BEFORE_PURGE);
     }
 }
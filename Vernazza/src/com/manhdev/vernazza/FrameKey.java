@@ -0,0 +1,68 @@
+package com.manhdev.vernazza;
+
+/**
+ * Identifies an extracted frame by the video it belongs to and its time offset.
+ *
+ * A frame is either exact, or a preview taken from the nearest preceding sync frame. Keys are
+ * immutable once cached; only probe keys used for lookups are reset with {@link #set}.
+ */
+public final class FrameKey {
+
+    String videoId;
+    long timeUs;
+    boolean exact;
+
+    /**
+     * @param videoId   Identity of the source video.
+     * @param timeUs    Time offset of the frame in usecs.
+     */
+    public FrameKey(String videoId, long timeUs) {
+        this(videoId, timeUs, true);
+    }
+
+    /**
+     * @param videoId   Identity of the source video.
+     * @param timeUs    Time offset of the frame in usecs.
+     * @param exact     False for a sync frame preview of the frame.
+     */
+    public FrameKey(String videoId, long timeUs, boolean exact) {
+        this.videoId = videoId;
+        this.timeUs = timeUs;
+        this.exact = exact;
+    }
+
+    /**
+     * Points a probe key at another frame, so lookups on the UI thread allocate nothing. Must
+     * never be called on a key that was put in a cache.
+     * @return This key.
+     */
+    FrameKey set(String videoId, long timeUs, boolean exact) {
+        this.videoId = videoId;
+        this.timeUs = timeUs;
+        this.exact = exact;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FrameKey)) {
+            return false;
+        }
+        FrameKey other = (FrameKey) o;
+        return timeUs == other.timeUs && exact == other.exact && videoId.equals(other.videoId);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 31 * videoId.hashCode() + (int) (timeUs ^ (timeUs >>> 32));
+        return exact ? hash : ~hash;
+    }
+
+    @Override
+    public String toString() {
+        return videoId + "@" + timeUs + (exact ? "" : "~");
+    }
+}
@@ -0,0 +1,44 @@
+package com.manhdev.vernazza;
+
+/**
+ * Label of a frame list row: the time offset of its frame, formatted again only when the row
+ * shows another time, into a buffer of its own that the text view keeps referring to.
+ *
+ * Updating allocates nothing. An instance is not thread safe.
+ */
+public class FrameLabel {
+
+    private final TimeFormatter formatter = new TimeFormatter();
+    private long usecs = -1;
+    private boolean showMillis;
+
+    /**
+     * Formats the label for a frame, unless it already shows it.
+     * @param usecs         Time offset of the frame in usecs.
+     * @param showMillis    True to show the milliseconds.
+     * @return True if the text changed and must be set again.
+     */
+    public boolean update(long usecs, boolean showMillis) {
+        if (usecs == this.usecs && showMillis == this.showMillis) {
+            return false;
+        }
+        this.usecs = usecs;
+        this.showMillis = showMillis;
+        formatter.format(usecs / 1000, showMillis);
+        return true;
+    }
+
+    /**
+     * Returns the buffer holding the text, valid until the next change.
+     */
+    public char[] getBuffer() {
+        return formatter.getBuffer();
+    }
+
+    /**
+     * Returns the number of characters of the text.
+     */
+    public int getLength() {
+        return formatter.getLength();
+    }
+}
@@ -0,0 +1,39 @@
+package com.manhdev.vernazza;
+
+/**
+ * Looks up the cached frames of one video from the UI thread through a single probe key, so
+ * that binding a row to a cached frame allocates no key.
+ *
+ * An instance is not thread safe; other threads build keys of their own.
+ */
+public class FrameLookup<V> {
+
+    private final MemoryCache<FrameKey, V> cache;
+    private final String videoId;
+    private final FrameKey probeKey = new FrameKey("", 0);
+
+    /**
+     * @param cache     Cache of the frames.
+     * @param videoId   Identity of the video the frames are looked up for.
+     */
+    public FrameLookup(MemoryCache<FrameKey, V> cache, String videoId) {
+        this.cache = cache;
+        this.videoId = videoId;
+    }
+
+    /**
+     * @param timeUs    Time offset of the frame in usecs.
+     * @param exact     False for the sync frame preview.
+     * @return The cached frame, which becomes the most recently used, or null.
+     */
+    public V get(long timeUs, boolean exact) {
+        return cache.get(probeKey.set(videoId, timeUs, exact));
+    }
+
+    /**
+     * Returns true if the frame is cached, without counting a hit or miss.
+     */
+    public boolean contains(long timeUs, boolean exact) {
+        return cache.contains(probeKey.set(videoId, timeUs, exact));
+    }
+}
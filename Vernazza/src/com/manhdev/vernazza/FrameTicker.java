@@ -0,0 +1,119 @@
+package com.manhdev.vernazza;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Calls back on the UI thread once per display frame while started.
+ *
+ * <p>The display vsync drives the ticks through Choreographer where available, so that work
+ * done on a tick lands in the frame being drawn. Older platforms fall back to a handler posting
+ * at the nominal 60Hz frame rate.</p>
+ *
+ * Ticks cost no allocation, so a ticker may run for as long as the screen shows.
+ */
+public class FrameTicker {
+
+    // Frame period assumed without Choreographer, in msecs
+    private static final long FALLBACK_PERIOD = 16;
+
+    /**
+     * Receives the ticks, on the UI thread.
+     */
+    public interface Callback {
+        /**
+         * @param frameTimeNanos    Time the frame started rendering, in the
+         *                          {@link System#nanoTime()} time base.
+         */
+        void onTick(long frameTimeNanos);
+    }
+
+    private final Callback callback;
+    private final Source source;
+    private boolean running;
+
+    /**
+     * @param callback  Receiver of the ticks.
+     */
+    public FrameTicker(Callback callback) {
+        this.callback = callback;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            source = new ChoreographerSource();
+        } else {
+            source = new HandlerSource();
+        }
+    }
+
+    /**
+     * Starts ticking from the next frame on. Must be called on the UI thread.
+     */
+    public void start() {
+        if (!running) {
+            running = true;
+            source.schedule();
+        }
+    }
+
+    /**
+     * Stops ticking. Must be called on the UI thread.
+     */
+    public void stop() {
+        if (running) {
+            running = false;
+            source.unschedule();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void tick(long frameTimeNanos) {
+        if (running) {
+            // Scheduled first, so that the callback may stop the ticker
+            source.schedule();
+            callback.onTick(frameTimeNanos);
+        }
+    }
+
+    private interface Source {
+        void schedule();
+        void unschedule();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerSource implements Source, Choreographer.FrameCallback {
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        public void schedule() {
+            choreographer.postFrameCallback(this);
+        }
+
+        public void unschedule() {
+            choreographer.removeFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            tick(frameTimeNanos);
+        }
+    }
+
+    private class HandlerSource implements Source, Runnable {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        public void schedule() {
+            handler.postDelayed(this, FALLBACK_PERIOD);
+        }
+
+        public void unschedule() {
+            handler.removeCallbacks(this);
+        }
+
+        public void run() {
+            tick(System.nanoTime());
+        }
+    }
+}
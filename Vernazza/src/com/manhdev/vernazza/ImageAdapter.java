@@ -18,10 +18,9 @@ package com.manhdev.vernazza;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
-import android.util.Log;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
@@ -31,16 +30,18 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
-public class ImageAdapter extends BaseAdapter {
+public class ImageAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
 
     private final FrameExtractor frameExtractor;
+    private final ScrollPrefetcher prefetcher;
     private static final String TAG = "ImageAdapter";
     private static final int DEFAULT_FRAME_INTERVAL = 10000;
     
     private int interval;
     
-    ImageAdapter(String path) throws FileNotFoundException, IOException {
-        frameExtractor = new FrameExtractor(path);
+    ImageAdapter(Context context, String path) throws FileNotFoundException, IOException {
+        frameExtractor = new FrameExtractor(context, path);
+        prefetcher = new ScrollPrefetcher(frameExtractor);
         setInterval(DEFAULT_FRAME_INTERVAL);
     }
     
@@ -57,8 +58,7 @@ public class ImageAdapter extends BaseAdapter {
     }
 
     public View getView(int position, View view, ViewGroup parent) {
-        ImageView imageView = null;
-        TextView text = null;
+        RowHolder holder;
 
         if (view == null) {
             RelativeLayout rLayout = new RelativeLayout(parent.getContext());
@@ -67,7 +67,7 @@ public class ImageAdapter extends BaseAdapter {
                     ,LayoutParams.FILL_PARENT));
             view = rLayout;
 
-            imageView = new ImageView(rLayout.getContext());
+            ImageView imageView = new ImageView(rLayout.getContext());
             imageView.setPadding(0,1,0,1);
             LayoutParams rlParams = new LayoutParams(LayoutParams.FILL_PARENT
                     ,LayoutParams.FILL_PARENT); 
@@ -77,45 +77,38 @@ public class ImageAdapter extends BaseAdapter {
                     (LayoutParams.WRAP_CONTENT,LayoutParams.WRAP_CONTENT);
             tParams.addRule(RelativeLayout.ALIGN_PARENT_RIGHT, RelativeLayout.TRUE);
             tParams.addRule(RelativeLayout.ALIGN_PARENT_TOP, RelativeLayout.TRUE);
-            text = new TextView(rLayout.getContext()); 
+            TextView text = new TextView(rLayout.getContext()); 
             text.setLayoutParams(tParams);
 
             rLayout.addView(imageView);
             rLayout.addView(text);
+            holder = new RowHolder(imageView, text);
+            view.setTag(holder);
         } else {
-            imageView = (ImageView)((ViewGroup)view).getChildAt(0);
-            text = (TextView)((ViewGroup)view).getChildAt(1);
+            holder = (RowHolder) view.getTag();
         }
 
-        if (imageView == null) {
-            Log.w(TAG, "null imageView");
-            return view;
-        }
+        frameExtractor.extract(position, holder.imageView);
 
-        if (text == null) {
-            Log.w(TAG, "null text");
-            return text;
+        // Resolution is in milliseconds unless rows are whole seconds apart
+        if (holder.label.update(frameExtractor.getFrameTimeOffset(position), interval < 1000)) {
+            holder.text.setText(holder.label.getBuffer(), 0, holder.label.getLength());
         }
 
-        frameExtractor.extract(position, imageView);
-
-        long millis = frameExtractor.getFrameTimeOffset(position) / 1000;
-        long mins = TimeUnit.MILLISECONDS.toMinutes(millis);
-        long secs = TimeUnit.MILLISECONDS.toSeconds(millis) - 
-                TimeUnit.MINUTES.toSeconds(mins);
-        String formatted = null;
-        
-        if (interval >= 1000) {
-            // Resolution is in seconds
-            formatted = String.format("%02d:%02d", mins, secs);
-        } else {
-            // Resolution is in milliseconds
-            long msecs = millis - TimeUnit.MINUTES.toMillis(mins) - TimeUnit.SECONDS.toMillis(secs);
-            formatted = String.format("%02d:%02d.%03d", mins, secs, msecs);
+        return view;
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (visibleItemCount > 0) {
+            frameExtractor.setVisibleRange(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+            prefetcher.onScroll(firstVisibleItem, visibleItemCount, SystemClock.uptimeMillis());
         }
-        text.setText(formatted); 
+    }
 
-        return view;
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        prefetcher.onScrollStateChanged(scrollState == SCROLL_STATE_IDLE);
+        frameExtractor.setScrolling(scrollState != SCROLL_STATE_IDLE);
     }
 
     /**
@@ -130,4 +123,82 @@ public class ImageAdapter extends BaseAdapter {
     public int getInterval() {
         return interval;
     }
+
+    /**
+     * Shows the frames at the given times instead of frames at a fixed interval. Labels then
+     * show milliseconds since the rows are not evenly spaced.
+     * @param usecs         Ascending sync frame times in usecs.
+     */
+    public void setKeyFrameTimes(long[] usecs) {
+        interval = 0;
+        frameExtractor.setFrameTimes(usecs, true);
+    }
+
+    /**
+     * Shows the first frame of each scene instead of frames at a fixed interval.
+     * @param usecs         Ascending scene start times in usecs.
+     */
+    public void setSceneTimes(long[] usecs) {
+        interval = 0;
+        frameExtractor.setFrameTimes(usecs, false);
+    }
+
+    /**
+     * Finds the scene changes of the video. Blocks, not for the UI thread.
+     */
+    public long[] loadSceneTimes() throws IOException {
+        return frameExtractor.loadSceneTimes();
+    }
+
+    /**
+     * Reads the sync frame times of the video. Blocks, not for the UI thread.
+     */
+    public long[] loadKeyFrameTimes() throws IOException {
+        return frameExtractor.loadKeyFrameTimes();
+    }
+
+    /**
+     * Returns the row showing the frame at or before the specified time.
+     * @param usecs         Time offset in usecs.
+     */
+    public int getPosition(long usecs) {
+        return frameExtractor.getFrameIndex(usecs);
+    }
+
+    /**
+     * Shows the cached frame closest to the specified time, never waiting for extraction.
+     * @param usecs         Time offset in usecs.
+     * @return True if a frame is shown.
+     */
+    public boolean showNearestFrame(long usecs, ImageView imageView) {
+        return frameExtractor.showNearestFrame(usecs, imageView);
+    }
+
+    /**
+     * Clears a view filled by {@link #showNearestFrame(long, ImageView)}.
+     */
+    public void clearFrame(ImageView imageView) {
+        frameExtractor.clearFrame(imageView);
+    }
+
+    /**
+     * Stops frame extraction and releases the decoders.
+     */
+    public void release() {
+        frameExtractor.release();
+    }
+
+    /**
+     * Views of a row, kept in its tag, along with the label its text view refers to.
+     */
+    private static final class RowHolder {
+        final ImageView imageView;
+        final TextView text;
+        final FrameLabel label = new FrameLabel();
+
+        RowHolder(ImageView imageView, TextView text) {
+            this.imageView = imageView;
+            this.text = text;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package com.manhdev.vernazza;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Reads the presentation times of the sync samples (I-frames) of a video from its container.
+ *
+ * The extractor hops from one sync sample to the next, so only the sample table is consulted
+ * and no frame is decoded.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class KeyFrameIndex {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /**
+     * Returns true if the platform provides the extractor API this index relies on.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * @param path  Local path of the video.
+     * @return      Ascending sync sample times of the first video track in usecs.
+     */
+    public static long[] read(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            if (!selectVideoTrack(extractor)) {
+                throw new IOException("no video track in " + path);
+            }
+            long[] times = new long[INITIAL_CAPACITY];
+            int count = 0;
+            long last = -1;
+            extractor.seekTo(0, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            while (true) {
+                long time = extractor.getSampleTime();
+                if (time < 0) {
+                    break;
+                }
+                if (time <= last) {
+                    // The extractor did not move past the previous sync sample, step manually
+                    if (!advanceToNextSync(extractor, last)) {
+                        break;
+                    }
+                    time = extractor.getSampleTime();
+                }
+                if (count == times.length) {
+                    long[] grown = new long[count * 2];
+                    System.arraycopy(times, 0, grown, 0, count);
+                    times = grown;
+                }
+                times[count++] = time;
+                last = time;
+                extractor.seekTo(time + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            }
+            long[] result = new long[count];
+            System.arraycopy(times, 0, result, 0, count);
+            return result;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static boolean selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean advanceToNextSync(MediaExtractor extractor, long after) {
+        while (extractor.advance()) {
+            long time = extractor.getSampleTime();
+            if (time > after && (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
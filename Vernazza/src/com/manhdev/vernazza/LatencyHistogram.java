@@ -0,0 +1,139 @@
+package com.manhdev.vernazza;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in buckets of powers of two microseconds.
+ *
+ * <p>Recording is a few atomic increments and never allocates, so it can sit on the decode
+ * path of every worker thread. Percentiles are read from the buckets and are therefore only
+ * accurate to a factor of two, which is enough to tell a 5ms decode from a 50ms one.</p>
+ *
+ * Readers see the buckets without a snapshot, so a report taken while recording goes on may be
+ * off by the samples recorded meanwhile.
+ */
+public class LatencyHistogram {
+
+    // Bucket i holds durations below 2^i usecs; the last one holds everything longer
+    private static final int BUCKET_COUNT = 28;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param name  Name shown in reports.
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos     Duration in nsecs, as measured with {@link System#nanoTime()}.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean duration in usecs, or 0 if nothing was recorded.
+     */
+    public long getMeanMicros() {
+        long n = count.get();
+        return n > 0 ? totalNanos.get() / n / 1000 : 0;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, in usecs, capped at
+     * the maximum.
+     * @param percent   Percentile between 0 and 100.
+     */
+    public long getPercentileMicros(int percent) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (n * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Forgets all recorded durations.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    /**
+     * Returns a one line summary: count, mean, median, 90th and 99th percentiles and maximum.
+     */
+    @Override
+    public String toString() {
+        return name + ": n=" + getCount() + " mean=" + formatMicros(getMeanMicros())
+                + " p50<" + formatMicros(getPercentileMicros(50))
+                + " p90<" + formatMicros(getPercentileMicros(90))
+                + " p99<" + formatMicros(getPercentileMicros(99))
+                + " max=" + formatMicros(getMaxMicros());
+    }
+
+    /**
+     * Appends the non-empty buckets, one per line, for dumps.
+     */
+    public void appendBuckets(StringBuilder sb) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long n = buckets.get(i);
+            if (n > 0) {
+                sb.append("  <").append(i < BUCKET_COUNT - 1 ? formatMicros(1L << i) : "inf")
+                        .append(' ').append(n).append('\n');
+            }
+        }
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        if (micros < 1000000) {
+            return (micros / 1000) + "." + (micros / 100 % 10) + "ms";
+        }
+        return (micros / 1000000) + "." + (micros / 100000 % 10) + "s";
+    }
+}
@@ -0,0 +1,204 @@
+package com.manhdev.vernazza;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Keeps sorted, filtered directory listings of the file dialog in memory and on disk, so that
+ * going back to a directory shows it without scanning it again.
+ *
+ * <p>A listing is keyed by the directory path and the format filter, and is valid as long as
+ * the modification time of the directory is the one recorded with it, which changes whenever
+ * an entry is added, removed or renamed. Listings taken within a few seconds of such a change
+ * are not kept, since a coarse file system clock could hide a second change.</p>
+ *
+ * The memory tier is for the UI thread; the other methods touch the disk.
+ */
+public class ListingCache {
+
+    private static final String LOG_TAG = "ListingCache";
+    private static final String DIRECTORY = "listings";
+    private static final int VERSION = 1;
+    private static final long MAX_BYTES = 4 * 1024 * 1024;
+    // Total number of names kept in memory
+    private static final long MAX_NAMES = 50000;
+    // Modification times closer than this to the scan may hide a later change, in msecs
+    static final long RACY_WINDOW = 3000;
+
+    /**
+     * A listing along with the modification time of its directory when it was taken.
+     */
+    public static final class Entry {
+        public final long modified;
+        public final List<File> directories;
+        public final List<File> files;
+
+        public Entry(long modified, List<File> directories, List<File> files) {
+            this.modified = modified;
+            this.directories = directories;
+            this.files = files;
+        }
+
+        /**
+         * Returns true if the directory has not changed since the listing was taken.
+         */
+        public boolean isValid(File dir) {
+            return dir.lastModified() == modified;
+        }
+    }
+
+    private static ListingCache instance;
+
+    private final MemoryCache<String, Entry> memory = new MemoryCache<String, Entry>(MAX_NAMES) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            return 1 + entry.directories.size() + entry.files.size();
+        }
+    };
+    private final DiskLruCache disk;
+
+    private ListingCache(DiskLruCache disk) {
+        this.disk = disk;
+    }
+
+    /**
+     * Returns the process wide listing cache, opening it on first use. Opening reads the
+     * journal, so this should not be called on the UI thread.
+     * @param cacheDir  Application cache directory.
+     * @return          The cache or null if it could not be opened.
+     */
+    public static synchronized ListingCache open(File cacheDir) {
+        if (instance == null) {
+            try {
+                instance = new ListingCache(new DiskLruCache(new File(cacheDir, DIRECTORY), MAX_BYTES));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the process wide listing cache if it is already open, for the UI thread.
+     */
+    public static synchronized ListingCache peek() {
+        return instance;
+    }
+
+    /**
+     * Returns the key of the listing of dir through lister.
+     */
+    public static String key(File dir, DirectoryLister lister) {
+        return dir.getAbsolutePath() + '\n' + Arrays.toString(lister.getFormatFilter());
+    }
+
+    /**
+     * Returns the listing held in memory, without checking that it is still valid.
+     */
+    public Entry getFromMemory(String key) {
+        return memory.get(key);
+    }
+
+    /**
+     * Returns the listing held in memory or on disk, without checking that it is still valid.
+     */
+    public Entry get(String key, File dir) {
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        File file = disk.get(DiskFrameCache.digest(key));
+        if (file == null) {
+            return null;
+        }
+        try {
+            entry = read(file, key, dir);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+            return null;
+        }
+        if (entry != null) {
+            memory.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Keeps a listing, unless the directory changed too recently for its modification time to
+     * be trusted.
+     * @param scanStart     Time the scan started, in msecs since the epoch.
+     */
+    public void put(String key, Entry entry, long scanStart) {
+        if (entry.modified == 0 || scanStart - entry.modified < RACY_WINDOW) {
+            memory.remove(key);
+            return;
+        }
+        memory.put(key, entry);
+        String diskKey = DiskFrameCache.digest(key);
+        File editFile = disk.beginEdit(diskKey);
+        try {
+            write(editFile, key, entry);
+            disk.commit(diskKey, editFile);
+        } catch (IOException e) {
+            disk.abort(editFile);
+            Log.e(LOG_TAG, e.toString());
+        }
+    }
+
+    private static Entry read(File file, String key, File dir) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                // Digest collision or older format
+                return null;
+            }
+            long modified = in.readLong();
+            List<File> directories = readNames(in, dir);
+            List<File> files = readNames(in, dir);
+            return new Entry(modified, directories, files);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String key, Entry entry) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeLong(entry.modified);
+            writeNames(out, entry.directories);
+            writeNames(out, entry.files);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<File> readNames(DataInputStream in, File dir) throws IOException {
+        int count = in.readInt();
+        ArrayList<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new File(dir, in.readUTF()));
+        }
+        return files;
+    }
+
+    private static void writeNames(DataOutputStream out, List<File> files) throws IOException {
+        out.writeInt(files.size());
+        for (File file : files) {
+            out.writeUTF(file.getName());
+        }
+    }
+}
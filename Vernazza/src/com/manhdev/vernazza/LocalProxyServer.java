@@ -0,0 +1,288 @@
+package com.manhdev.vernazza;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Minimal HTTP server on the loopback interface that serves {@link ByteSource}s to the media
+ * framework.
+ *
+ * <p>MediaPlayer, MediaMetadataRetriever and MediaExtractor all accept http URLs, so pointing
+ * them to this server lets them consume remote videos while they are still being fetched.
+ * Requests for bytes that have not arrived yet block until they do.</p>
+ *
+ * <p>The loopback interface is open to every application of the device, so each source is
+ * served under a random path that only the holder of its URL knows.</p>
+ *
+ * Only GET and HEAD with single byte ranges are supported. Every response closes its
+ * connection.
+ */
+public class LocalProxyServer {
+
+    private static final String LOG_TAG = "LocalProxyServer";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 8192;
+    // Random bytes in the path of a source
+    private static final int TOKEN_BYTES = 16;
+
+    private static LocalProxyServer instance;
+
+    private final ServerSocket serverSocket;
+    private final String baseUrl;
+    private final HashMap<String, ByteSource> sources = new HashMap<String, ByteSource>();
+    private final ExecutorService connections;
+    private final SecureRandom random = new SecureRandom();
+
+    private LocalProxyServer() throws IOException {
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        baseUrl = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+        connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        }, LOG_TAG);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the process wide server, starting it on first use.
+     */
+    public static synchronized LocalProxyServer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new LocalProxyServer();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the location a URL served by the proxy fetches its bytes from, or the URL itself
+     * if it is not served by the proxy.
+     */
+    public static String getOrigin(String url) {
+        LocalProxyServer server;
+        synchronized (LocalProxyServer.class) {
+            server = instance;
+        }
+        if (server != null) {
+            ByteSource source = server.getSource(url);
+            if (source != null) {
+                return source.getOrigin();
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Makes a source available to the media framework.
+     * @return          Local URL serving the source.
+     */
+    public synchronized String register(ByteSource source) {
+        // Unpredictable, unlike anything derived from the origin
+        String name;
+        do {
+            name = newToken();
+        } while (sources.containsKey(name));
+        sources.put(name, source);
+        return baseUrl + name;
+    }
+
+    /**
+     * Stops serving the source at url. Responses in progress fail once the source is released.
+     */
+    public synchronized void unregister(String url) {
+        if (url.startsWith(baseUrl)) {
+            sources.remove(url.substring(baseUrl.length()));
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    private synchronized ByteSource getSource(String url) {
+        if (!url.startsWith(baseUrl)) {
+            return null;
+        }
+        return sources.get(url.substring(baseUrl.length()));
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+                return;
+            }
+            connections.execute(new Runnable() {
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client closed the connection, usually to seek elsewhere
+                        Log.d(LOG_TAG, e.toString());
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.e(LOG_TAG, e.toString());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        String[] request = readLine(in).split(" ");
+        long rangeStart = 0;
+        long rangeEnd = -1;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                long[] range = parseRange(line.substring(colon + 1).trim());
+                if (range != null) {
+                    rangeStart = range[0];
+                    rangeEnd = range[1];
+                }
+            }
+        }
+        if (request.length < 2 || !(request[0].equals("GET") || request[0].equals("HEAD"))) {
+            writeStatus(out, "405 Method Not Allowed");
+            return;
+        }
+        ByteSource source = getSource(baseUrl + request[1].substring(1));
+        if (source == null) {
+            writeStatus(out, "404 Not Found");
+            return;
+        }
+
+        long length = source.getLength();
+        if (length < 0) {
+            // Ranges cannot be answered without knowing the length, serve everything
+            rangeStart = 0;
+            rangeEnd = -1;
+        }
+        boolean partial = rangeStart > 0 || rangeEnd >= 0;
+        if (length >= 0) {
+            if (rangeEnd < 0 || rangeEnd >= length) {
+                rangeEnd = length - 1;
+            }
+            if (rangeStart >= length) {
+                out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"
+                        + "Content-Range: bytes */" + length + "\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                return;
+            }
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        String contentType = source.getContentType();
+        header.append("Content-Type: ")
+                .append(contentType != null ? contentType : "application/octet-stream").append("\r\n");
+        if (length >= 0) {
+            header.append("Accept-Ranges: bytes\r\n");
+            header.append("Content-Length: ").append(rangeEnd - rangeStart + 1).append("\r\n");
+            if (partial) {
+                header.append("Content-Range: bytes ").append(rangeStart).append('-')
+                        .append(rangeEnd).append('/').append(length).append("\r\n");
+            }
+        }
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes("US-ASCII"));
+        if (request[0].equals("HEAD")) {
+            out.flush();
+            return;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = rangeStart;
+        while (rangeEnd < 0 || position <= rangeEnd) {
+            int count = rangeEnd < 0 ? buffer.length : (int) Math.min(buffer.length, rangeEnd + 1 - position);
+            int read = source.read(position, buffer, 0, count);
+            if (read < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            position += read;
+        }
+        out.flush();
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes("US-ASCII"));
+    }
+
+    /**
+     * Parses a single range such as "bytes=100-" or "bytes=100-199".
+     * @return          Start and inclusive end, -1 if open, or null if unsupported.
+     */
+    private static long[] parseRange(String value) {
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring("bytes=".length());
+        int dash = spec.indexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(spec.substring(0, dash).trim());
+            String end = spec.substring(dash + 1).trim();
+            return new long[] { start, end.length() > 0 ? Long.parseLong(end) : -1 };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > MAX_LINE_LENGTH) {
+                throw new IOException("request line too long");
+            }
+        }
+        if (c < 0 && line.length() == 0) {
+            throw new IOException("connection closed");
+        }
+        return line.toString();
+    }
+}
@@ -17,6 +17,7 @@ public class MainActivity extends Activity {
 
     protected static final int REQUEST_PLAY = 1;
     protected static final int REQUEST_ANALYZE = 2;
+    protected static final int REQUEST_LIBRARY = 3;
     
     public static final String PLAYER_LAST_PATH = "PLAYER_LAST_PATH";
     private static final String PLAYER_DEFAULT_PATH =
@@ -36,6 +37,16 @@ public class MainActivity extends Activity {
             }
         });
 
+        ((Button) findViewById(R.id.buttonAllVideos))
+        .setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                launchLibrary();
+            }
+        });
+
+        // Brings the library up to date while a video is picked by hand
+        MediaIndexer.get(this).scan(getFavPaths());
+
         launchFileDialog();
     }
 
@@ -62,6 +73,17 @@ public class MainActivity extends Activity {
 
     protected void launchFileDialog() {
         Intent intent = new Intent(getBaseContext(), FileDialog.class);
+        intent.putExtra(FileDialog.FAV_PATHS, getFavPaths());
+        startActivityForResult(intent, REQUEST_PLAY);  
+    }
+
+    protected void launchLibrary() {
+        Intent intent = new Intent(getBaseContext(), MediaLibrary.class);
+        intent.putExtra(FileDialog.FAV_PATHS, getFavPaths());
+        startActivityForResult(intent, REQUEST_LIBRARY);
+    }
+
+    private String[] getFavPaths() {
         String favPaths[] = null;
         if (lastPath.equals(PLAYER_DEFAULT_PATH)) {
             favPaths = new String[1];
@@ -71,15 +93,14 @@ public class MainActivity extends Activity {
             favPaths[0] = PLAYER_DEFAULT_PATH;
             favPaths[1] = lastPath;
         }
-        intent.putExtra(FileDialog.FAV_PATHS, favPaths);
-        startActivityForResult(intent, REQUEST_PLAY);  
+        return favPaths;
     }
     
     @Override
     public synchronized void onActivityResult(final int requestCode, int resultCode,
             final Intent data) {
         if (resultCode == Activity.RESULT_OK) {
-            if (requestCode == REQUEST_PLAY) {
+            if (requestCode == REQUEST_PLAY || requestCode == REQUEST_LIBRARY) {
                 Intent intent = null;
                 File f = new File(data.getStringExtra(FileDialog.RESULT_PATH));
                 if (f.exists()) {
@@ -0,0 +1,305 @@
+package com.manhdev.vernazza;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * SQLite index of the videos found under the favorite folders, filled by {@link MediaIndexer}.
+ *
+ * <p>Every directory crawled is recorded with its modification time and parent, so that a
+ * rescan lists again only the directories whose entries changed and walks the others from the
+ * index. Videos are recorded with their size and modification time, to probe their metadata
+ * again only when they change.</p>
+ *
+ * Queries touch the disk and should not run on the UI thread.
+ */
+public class MediaIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE = "media.db";
+    private static final int VERSION = 1;
+
+    private static final String DIRECTORIES = "directories";
+    private static final String VIDEOS = "videos";
+
+    // Longest a poster can be into a video, in usecs
+    private static final long MAX_POSTER_TIME = 10 * 1000 * 1000;
+
+    /**
+     * A video of the index.
+     */
+    public static final class Video {
+        public final String path;
+        public final String name;
+        public final long size;
+        public final long modified;
+        /** Duration in msecs, or 0 if unknown. */
+        public final long duration;
+        public final int width;
+        public final int height;
+        /** Identity of the file, as returned by {@link DiskFrameCache#videoIdentity(String)}. */
+        public final String identity;
+        /** Time of the poster frame in usecs. */
+        public final long posterTime;
+
+        public Video(String path, String name, long size, long modified, long duration,
+                int width, int height, String identity, long posterTime) {
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.duration = duration;
+            this.width = width;
+            this.height = height;
+            this.identity = identity;
+            this.posterTime = posterTime;
+        }
+    }
+
+    private static MediaIndex instance;
+
+    private MediaIndex(Context context) {
+        super(context, DATABASE, null, VERSION);
+    }
+
+    /**
+     * Returns the process wide index. The database itself opens on first query.
+     */
+    public static synchronized MediaIndex get(Context context) {
+        if (instance == null) {
+            instance = new MediaIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the time of the poster frame of a video: a tenth into it, at most 10 seconds, so
+     * that it is past any fade in.
+     * @param duration  Duration in msecs.
+     * @return          Time in usecs.
+     */
+    public static long posterTime(long duration) {
+        return Math.min(duration * 1000 / 10, MAX_POSTER_TIME);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + DIRECTORIES + " ("
+                + "path TEXT PRIMARY KEY, "
+                + "parent TEXT, "
+                + "modified INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX directories_parent ON " + DIRECTORIES + " (parent)");
+        db.execSQL("CREATE TABLE " + VIDEOS + " ("
+                + "path TEXT PRIMARY KEY, "
+                + "directory TEXT NOT NULL, "
+                + "name TEXT NOT NULL, "
+                + "size INTEGER NOT NULL, "
+                + "modified INTEGER NOT NULL, "
+                + "duration INTEGER NOT NULL, "
+                + "width INTEGER NOT NULL, "
+                + "height INTEGER NOT NULL, "
+                + "identity TEXT NOT NULL, "
+                + "poster_time INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX videos_directory ON " + VIDEOS + " (directory)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The index is rebuilt by the next scan
+        db.execSQL("DROP TABLE IF EXISTS " + DIRECTORIES);
+        db.execSQL("DROP TABLE IF EXISTS " + VIDEOS);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the modification time recorded for a directory, or -1 if it was never crawled.
+     */
+    public long getDirectoryModified(String path) {
+        Cursor c = getReadableDatabase().query(DIRECTORIES, new String[] { "modified" },
+                "path = ?", new String[] { path }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the paths of the subdirectories recorded for a directory.
+     */
+    public List<String> getSubdirectories(String path) {
+        Cursor c = getReadableDatabase().query(DIRECTORIES, new String[] { "path" },
+                "parent = ?", new String[] { path }, null, null, null);
+        try {
+            ArrayList<String> paths = new ArrayList<String>(c.getCount());
+            while (c.moveToNext()) {
+                paths.add(c.getString(0));
+            }
+            return paths;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the videos recorded directly in a directory.
+     */
+    public List<Video> getVideosIn(String directory) {
+        return query("directory = ?", new String[] { directory }, null);
+    }
+
+    /**
+     * Returns the videos whose name contains text, in any case, sorted by name.
+     * @param text  Text to look for, or empty for all videos.
+     * @param limit Maximum number of videos returned.
+     */
+    public List<Video> search(String text, int limit) {
+        String escaped = text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return query("name LIKE ? ESCAPE '\\'", new String[] { '%' + escaped + '%' },
+                Integer.toString(limit));
+    }
+
+    /**
+     * Returns the number of videos recorded.
+     */
+    public long getVideoCount() {
+        Cursor c = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + VIDEOS, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Records a directory after its entries were crawled, replacing its subdirectories and
+     * videos, in a single transaction.
+     * @param path              Directory crawled.
+     * @param parent            Parent directory, or null for a root.
+     * @param modified          Modification time of the directory when crawled, or 0 to crawl
+     *                          it again next time.
+     * @param subdirectories    Paths of its subdirectories; recorded ones missing are removed
+     *                          along with everything under them.
+     * @param videos            Its videos.
+     */
+    public void putDirectory(String path, String parent, long modified,
+            List<String> subdirectories, List<Video> videos) {
+        HashSet<String> present = new HashSet<String>(subdirectories);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String subdirectory : getSubdirectories(path)) {
+                if (!present.contains(subdirectory)) {
+                    removeTree(db, subdirectory);
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put("path", path);
+            values.put("parent", parent);
+            values.put("modified", modified);
+            db.insertWithOnConflict(DIRECTORIES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            // Subdirectories recorded before as roots of their own are walked from here now
+            values.clear();
+            values.put("parent", path);
+            for (String subdirectory : subdirectories) {
+                db.update(DIRECTORIES, values, "path = ?", new String[] { subdirectory });
+            }
+
+            db.delete(VIDEOS, "directory = ?", new String[] { path });
+            for (Video video : videos) {
+                db.insert(VIDEOS, null, toValues(path, video));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the record of a single video, such as one whose file changed in a directory
+     * whose entries did not.
+     * @param directory Directory holding the video.
+     */
+    public void putVideo(String directory, Video video) {
+        getWritableDatabase().insertWithOnConflict(VIDEOS, null, toValues(directory, video),
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Returns the paths of the directories recorded as roots of a scan.
+     */
+    public List<String> getRoots() {
+        Cursor c = getReadableDatabase().query(DIRECTORIES, new String[] { "path" },
+                "parent IS NULL", null, null, null, null);
+        try {
+            ArrayList<String> paths = new ArrayList<String>(c.getCount());
+            while (c.moveToNext()) {
+                paths.add(c.getString(0));
+            }
+            return paths;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Removes a directory and everything recorded under it, such as a root that is gone or no
+     * longer scanned.
+     */
+    public void removeDirectory(String path) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            removeTree(db, path);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static ContentValues toValues(String directory, Video video) {
+        ContentValues values = new ContentValues();
+        values.put("path", video.path);
+        values.put("directory", directory);
+        values.put("name", video.name);
+        values.put("size", video.size);
+        values.put("modified", video.modified);
+        values.put("duration", video.duration);
+        values.put("width", video.width);
+        values.put("height", video.height);
+        values.put("identity", video.identity);
+        values.put("poster_time", video.posterTime);
+        return values;
+    }
+
+    private static void removeTree(SQLiteDatabase db, String path) {
+        // Compared as a prefix rather than with LIKE, which would need the path escaped
+        String prefix = path + '/';
+        String[] args = { path, prefix };
+        db.delete(DIRECTORIES, "path = ? OR substr(path, 1, " + prefix.length() + ") = ?", args);
+        db.delete(VIDEOS, "directory = ? OR substr(directory, 1, " + prefix.length() + ") = ?",
+                args);
+    }
+
+    private List<Video> query(String selection, String[] args, String limit) {
+        Cursor c = getReadableDatabase().query(VIDEOS, new String[] {
+                "path", "name", "size", "modified", "duration", "width", "height", "identity",
+                "poster_time" }, selection, args, null, null, "name COLLATE NOCASE", limit);
+        try {
+            ArrayList<Video> videos = new ArrayList<Video>(c.getCount());
+            while (c.moveToNext()) {
+                videos.add(new Video(c.getString(0), c.getString(1), c.getLong(2), c.getLong(3),
+                        c.getLong(4), c.getInt(5), c.getInt(6), c.getString(7), c.getLong(8)));
+            }
+            return videos;
+        } finally {
+            c.close();
+        }
+    }
+}
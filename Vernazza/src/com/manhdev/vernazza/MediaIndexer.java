@@ -0,0 +1,326 @@
+package com.manhdev.vernazza;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Crawls the favorite folders in the background, recording their videos in the
+ * {@link MediaIndex}.
+ *
+ * <p>A directory whose modification time is the one recorded has the same entries as when it
+ * was crawled, so it is not listed again; its subdirectories are walked from the index, as
+ * changes deep down do not show in the modification time of their ancestors. Writing to a file
+ * does not show in the modification time of its directory either, so the videos recorded in
+ * unchanged directories are still checked, without listing. Videos keep the metadata probed
+ * before unless their size or modification time changed.</p>
+ *
+ * <p>Recorded roots that are gone, or no longer under the folders scanned, are removed with
+ * everything under them.</p>
+ *
+ * A directory is recorded only once everything under it was, so an interrupted scan resumes
+ * where it stopped. Scans requested while one runs are coalesced into a single next one.
+ */
+public class MediaIndexer {
+
+    private static final String LOG_TAG = "MediaIndexer";
+
+    /** Extensions of the files indexed. */
+    public static final String[] VIDEO_FORMATS = {
+        ".3gp", ".avi", ".m4v", ".mkv", ".mov", ".mp4", ".mpg", ".ts", ".webm", ".wmv"
+    };
+
+    // Guards against symbolic link loops
+    private static final int MAX_DEPTH = 32;
+    // Shortest time between two updates of the listeners during a scan, in msecs
+    private static final long UPDATE_PERIOD = 1000;
+
+    /**
+     * Receives updates of the index, on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * Called as videos are recorded during a scan, and once it completes.
+         */
+        void onIndexUpdated();
+    }
+
+    private static MediaIndexer instance;
+
+    private final MediaIndex index;
+    private final DirectoryLister lister = new DirectoryLister(VIDEO_FORMATS);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+    private final Runnable notifier = new Runnable() {
+        public void run() {
+            for (Listener listener : new ArrayList<Listener>(listeners)) {
+                listener.onIndexUpdated();
+            }
+        }
+    };
+
+    // Guarded by this
+    private Thread scanThread;
+    private String[] pendingRoots;
+
+    // Used by the scan thread only
+    private long scanStart;
+    private long lastUpdate;
+    private int listedCount;
+    private int skippedCount;
+    private int probedCount;
+
+    private MediaIndexer(Context context) {
+        index = MediaIndex.get(context);
+    }
+
+    /**
+     * Returns the process wide indexer.
+     */
+    public static synchronized MediaIndexer get(Context context) {
+        if (instance == null) {
+            instance = new MediaIndexer(context);
+        }
+        return instance;
+    }
+
+    public MediaIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Adds a listener. Must be called on the UI thread.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener. Must be called on the UI thread.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized boolean isScanning() {
+        return scanThread != null;
+    }
+
+    /**
+     * Starts a scan of the given folders and everything under them, or schedules one after the
+     * scan running.
+     * @param roots Paths of the folders, which may be nested.
+     */
+    public synchronized void scan(String[] roots) {
+        pendingRoots = roots;
+        if (scanThread == null) {
+            scanThread = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runScans();
+                }
+            }, LOG_TAG);
+            scanThread.start();
+        }
+    }
+
+    private void runScans() {
+        while (true) {
+            String[] roots;
+            synchronized (this) {
+                roots = pendingRoots;
+                pendingRoots = null;
+                if (roots == null) {
+                    scanThread = null;
+                    break;
+                }
+            }
+            try {
+                scanRoots(roots);
+            } catch (RuntimeException e) {
+                // Such as the database being unavailable; the next scan starts over
+                Log.e(LOG_TAG, e.toString());
+            }
+            handler.removeCallbacks(notifier);
+            handler.post(notifier);
+        }
+    }
+
+    private void scanRoots(String[] roots) {
+        scanStart = System.currentTimeMillis();
+        long start = SystemClock.uptimeMillis();
+        listedCount = 0;
+        skippedCount = 0;
+        probedCount = 0;
+        List<String> outermost = getOutermost(roots);
+        for (String recorded : index.getRoots()) {
+            if (!outermost.contains(recorded) && !isUnder(recorded, outermost)) {
+                index.removeDirectory(recorded);
+                postUpdate();
+            }
+        }
+        for (String root : outermost) {
+            File dir = new File(root);
+            if (dir.isDirectory()) {
+                crawl(root, null, 0);
+            } else {
+                index.removeDirectory(root);
+                postUpdate();
+            }
+        }
+        Log.i(LOG_TAG, "scanned in " + (SystemClock.uptimeMillis() - start) + "ms: "
+                + listedCount + " directories listed, " + skippedCount + " unchanged, "
+                + probedCount + " videos probed, " + index.getVideoCount() + " indexed");
+    }
+
+    /**
+     * Crawls a directory and everything under it.
+     * @return  False if something under it could not be listed, so that it is crawled again by
+     *          the next scan.
+     */
+    private boolean crawl(String path, String parent, int depth) {
+        File dir = new File(path);
+        long modified = dir.lastModified();
+        if (modified != 0 && index.getDirectoryModified(path) == modified) {
+            skippedCount++;
+            for (MediaIndex.Video video : index.getVideosIn(path)) {
+                File file = new File(video.path);
+                if (video.size != file.length() || video.modified != file.lastModified()) {
+                    // Such as a video still being copied when last probed
+                    index.putVideo(path, probe(file));
+                    postUpdate();
+                }
+            }
+            for (String subdirectory : index.getSubdirectories(path)) {
+                crawl(subdirectory, path, depth + 1);
+            }
+            return true;
+        }
+        DirectoryLister.Listing listing = depth < MAX_DEPTH ? lister.list(dir) : null;
+        if (listing == null) {
+            return false;
+        }
+        listedCount++;
+
+        boolean complete = true;
+        ArrayList<String> subdirectories = new ArrayList<String>(listing.directories.size());
+        for (File subdirectory : listing.directories) {
+            if (!subdirectory.getName().startsWith(".")) {
+                subdirectories.add(subdirectory.getPath());
+                complete &= crawl(subdirectory.getPath(), path, depth + 1);
+            }
+        }
+
+        HashMap<String, MediaIndex.Video> recorded = new HashMap<String, MediaIndex.Video>();
+        for (MediaIndex.Video video : index.getVideosIn(path)) {
+            recorded.put(video.path, video);
+        }
+        ArrayList<MediaIndex.Video> videos = new ArrayList<MediaIndex.Video>(listing.files.size());
+        for (File file : listing.files) {
+            MediaIndex.Video video = recorded.get(file.getPath());
+            if (video == null || video.size != file.length()
+                    || video.modified != file.lastModified()) {
+                video = probe(file);
+            }
+            videos.add(video);
+        }
+
+        if (!complete || scanStart - modified < ListingCache.RACY_WINDOW) {
+            // Listed again next time
+            modified = 0;
+        }
+        index.putDirectory(path, parent, modified, subdirectories, videos);
+        if (!videos.isEmpty() || !recorded.isEmpty()) {
+            postUpdate();
+        }
+        return complete;
+    }
+
+    /**
+     * Reads the duration and resolution of a video. Files that cannot be read are recorded
+     * without them, so they are not probed again until they change.
+     */
+    private MediaIndex.Video probe(File file) {
+        probedCount++;
+        long size = file.length();
+        long modified = file.lastModified();
+        long duration = 0;
+        int width = 0;
+        int height = 0;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getPath());
+            duration = parse(retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_DURATION));
+            width = (int) parse(retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            height = (int) parse(retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "cannot probe " + file + ": " + e);
+        } finally {
+            retriever.release();
+        }
+        return new MediaIndex.Video(file.getPath(), file.getName(), size, modified, duration,
+                width, height, DiskFrameCache.videoIdentity(file.getPath()),
+                MediaIndex.posterTime(duration));
+    }
+
+    private void postUpdate() {
+        long now = SystemClock.uptimeMillis();
+        if (now - lastUpdate >= UPDATE_PERIOD) {
+            lastUpdate = now;
+            handler.post(notifier);
+        }
+    }
+
+    /**
+     * Returns the absolute paths of the roots that are not under another one.
+     */
+    private static List<String> getOutermost(String[] roots) {
+        ArrayList<String> paths = new ArrayList<String>(roots.length);
+        for (String root : roots) {
+            paths.add(new File(root).getAbsolutePath());
+        }
+        ArrayList<String> outermost = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            if (!outermost.contains(path) && !isUnder(path, paths)) {
+                outermost.add(path);
+            }
+        }
+        return outermost;
+    }
+
+    /**
+     * Returns true if path is strictly under one of the given directories.
+     */
+    private static boolean isUnder(String path, List<String> directories) {
+        for (String directory : directories) {
+            if (!directory.equals(path)
+                    && path.startsWith(directory.endsWith("/") ? directory : directory + '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parse(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
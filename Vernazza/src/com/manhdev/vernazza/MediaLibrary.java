@@ -0,0 +1,200 @@
+package com.manhdev.vernazza;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.ListActivity;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.Formatter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Lists every video of the {@link MediaIndex}, filtered by name as the search text changes.
+ *
+ * The list shows what the index holds at once, without walking the file system, while a scan
+ * of the favorite folders brings it up to date in the background. The path of the video picked
+ * is returned as {@link FileDialog#RESULT_PATH}.
+ */
+public class MediaLibrary extends ListActivity implements MediaIndexer.Listener {
+
+    // Most videos listed for a search
+    private static final int MAX_RESULTS = 2000;
+
+    private MediaIndexer indexer;
+    private VideoAdapter adapter;
+    private EditText search;
+    private TextView status;
+    private QueryTask queryTask;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setResult(RESULT_CANCELED, getIntent());
+        setContentView(R.layout.media_library);
+
+        search = (EditText) findViewById(R.id.librarySearch);
+        status = (TextView) findViewById(R.id.libraryStatus);
+        adapter = new VideoAdapter(this);
+        setListAdapter(adapter);
+
+        search.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                startQuery();
+            }
+        });
+
+        indexer = MediaIndexer.get(this);
+        String[] roots = getIntent().getStringArrayExtra(FileDialog.FAV_PATHS);
+        if (roots != null) {
+            indexer.scan(roots);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        indexer.addListener(this);
+        startQuery();
+    }
+
+    @Override
+    protected void onPause() {
+        indexer.removeListener(this);
+        if (queryTask != null) {
+            queryTask.cancel(false);
+            queryTask = null;
+        }
+        super.onPause();
+    }
+
+    public void onIndexUpdated() {
+        startQuery();
+    }
+
+    @Override
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        getIntent().putExtra(FileDialog.RESULT_PATH, adapter.getItem(position).path);
+        setResult(RESULT_OK, getIntent());
+        finish();
+    }
+
+    /**
+     * Queries the index for the current search text, superseding any query running.
+     */
+    private void startQuery() {
+        if (queryTask != null) {
+            queryTask.cancel(false);
+        }
+        queryTask = new QueryTask();
+        queryTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, search.getText().toString());
+    }
+
+    /**
+     * Searches the index off the UI thread.
+     */
+    private class QueryTask extends AsyncTask<String, Void, List<MediaIndex.Video>> {
+        private long total;
+
+        @Override
+        protected List<MediaIndex.Video> doInBackground(String... params) {
+            MediaIndex index = indexer.getIndex();
+            total = index.getVideoCount();
+            return index.search(params[0].trim(), MAX_RESULTS);
+        }
+
+        @Override
+        protected void onPostExecute(List<MediaIndex.Video> videos) {
+            if (queryTask != this) {
+                return;
+            }
+            queryTask = null;
+            adapter.setVideos(videos);
+            status.setText(getString(indexer.isScanning() ? R.string.indexing : R.string.indexed,
+                    total));
+        }
+    }
+
+    /**
+     * Rows of the library: name, then duration, resolution and size.
+     */
+    private static class VideoAdapter extends BaseAdapter {
+        private final Context context;
+        private final LayoutInflater inflater;
+        private final TimeFormatter duration = new TimeFormatter();
+        private final StringBuilder details = new StringBuilder();
+        private List<MediaIndex.Video> videos = new ArrayList<MediaIndex.Video>();
+
+        private static final class RowHolder {
+            final TextView name;
+            final TextView details;
+
+            RowHolder(View row) {
+                name = (TextView) row.findViewById(R.id.libraryRowName);
+                details = (TextView) row.findViewById(R.id.libraryRowDetails);
+            }
+        }
+
+        VideoAdapter(Context context) {
+            this.context = context;
+            inflater = LayoutInflater.from(context);
+        }
+
+        void setVideos(List<MediaIndex.Video> videos) {
+            this.videos = videos;
+            notifyDataSetChanged();
+        }
+
+        public int getCount() {
+            return videos.size();
+        }
+
+        public MediaIndex.Video getItem(int position) {
+            return videos.get(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View view, ViewGroup parent) {
+            RowHolder holder;
+            if (view == null) {
+                view = inflater.inflate(R.layout.media_library_row, parent, false);
+                holder = new RowHolder(view);
+                view.setTag(holder);
+            } else {
+                holder = (RowHolder) view.getTag();
+            }
+
+            MediaIndex.Video video = videos.get(position);
+            holder.name.setText(video.name);
+            details.setLength(0);
+            if (video.duration > 0) {
+                duration.format(video.duration, false);
+                details.append(duration.getBuffer(), 0, duration.getLength()).append("  ");
+            }
+            if (video.width > 0 && video.height > 0) {
+                details.append(video.width).append('x').append(video.height).append("  ");
+            }
+            details.append(Formatter.formatShortFileSize(context, video.size));
+            holder.details.setText(details.toString());
+            return view;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.manhdev.vernazza;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache bounded by the total size of its values, evicted in least recently used order.
+ *
+ * Subclasses define how large a value is and may be notified of evictions. Hits, misses and
+ * evictions are counted so the cache sizing can be judged.
+ */
+public abstract class MemoryCache<K, V> {
+
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final long maxSize;
+    private long size;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxSize   Maximum total size of the values, in the unit of {@link #sizeOf(Object, Object)}.
+     */
+    public MemoryCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the size of a value, usually in bytes. Must not change while the value is cached.
+     */
+    protected abstract int sizeOf(K key, V value);
+
+    /**
+     * Called, without the cache lock held, for every value evicted to make room.
+     */
+    protected void entryEvicted(K key, V value) {
+    }
+
+    /**
+     * @return  The value for key, which becomes the most recently used, or null if absent.
+     */
+    public V get(K key) {
+        synchronized (this) {
+            V value = map.get(key);
+            if (value != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Returns true if a value is cached for key, without counting a hit or miss and without
+     * affecting the LRU order.
+     */
+    public synchronized boolean contains(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Caches value for key, evicting least recently used values if the cache becomes too large.
+     * @return  The value previously cached for key, if any.
+     */
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        V previous;
+        synchronized (this) {
+            size += sizeOf(key, value);
+            previous = map.put(key, value);
+            if (previous != null) {
+                size -= sizeOf(key, previous);
+            }
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the value for key without treating it as an eviction.
+     * @return  The removed value, if any.
+     */
+    public synchronized V remove(K key) {
+        V previous = map.remove(key);
+        if (previous != null) {
+            size -= sizeOf(key, previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Drops all values without treating them as evictions.
+     */
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    /**
+     * Evicts least recently used values until the total size is at most maxSize.
+     */
+    public void trimToSize(long maxSize) {
+        while (true) {
+            K key;
+            V value;
+            synchronized (this) {
+                if (size <= maxSize || map.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+                Map.Entry<K, V> eldest = it.next();
+                key = eldest.getKey();
+                value = eldest.getValue();
+                it.remove();
+                size -= sizeOf(key, value);
+                evictionCount++;
+            }
+            entryEvicted(key, value);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (int) (100 * hitCount / accesses) : 0;
+        return "MemoryCache[size=" + size + "/" + maxSize + ",hits=" + hitCount + ",misses="
+                + missCount + ",evictions=" + evictionCount + ",hitRate=" + hitPercent + "%]";
+    }
+}
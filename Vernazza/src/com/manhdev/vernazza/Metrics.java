@@ -0,0 +1,163 @@
+package com.manhdev.vernazza;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Build;
+
+/**
+ * Process wide counters and latency histograms of frame extraction and seeking.
+ *
+ * <p>Counters are atomic and histograms lock-free, so the extraction workers record without
+ * contending or allocating. Reports are built on demand, for the debug overlay or for a dump
+ * file that tells the device and build it was taken on, so that runs can be compared.</p>
+ *
+ * The retriever API seeks and decodes in a single call, so a single-frame extraction is timed
+ * as a whole; the sequential decoder times its seek separately.
+ */
+public class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    /** Wait for a free retriever before an extraction. */
+    public final LatencyHistogram retrieverWait = new LatencyHistogram("retriever wait");
+    /** Seek and decode of a single frame by a retriever. */
+    public final LatencyHistogram frameDecode = new LatencyHistogram("retriever seek+decode");
+    /** Seek of the sequential decoder to the sync frame before a run. */
+    public final LatencyHistogram sequentialSeek = new LatencyHistogram("sequential seek");
+    /** Time between frames delivered by the sequential decoder. */
+    public final LatencyHistogram sequentialFrame = new LatencyHistogram("sequential frame");
+    /** Scaling of a decoded frame to the strip size. */
+    public final LatencyHistogram scale = new LatencyHistogram("scale");
+    /** Read of a frame from the disk tier. */
+    public final LatencyHistogram diskRead = new LatencyHistogram("disk read");
+    /** Time from issuing a player seek to its completion. */
+    public final LatencyHistogram seek = new LatencyHistogram("player seek");
+
+    /** Rows bound from the memory tier with their exact frame. */
+    public final AtomicLong memoryHits = new AtomicLong();
+    /** Rows bound from the memory tier with a sync frame preview. */
+    public final AtomicLong previewHits = new AtomicLong();
+    /** Rows that had to be extracted. */
+    public final AtomicLong memoryMisses = new AtomicLong();
+    /** Extractions served by the disk tier. */
+    public final AtomicLong diskHits = new AtomicLong();
+    /** Extractions the disk tier could not serve. */
+    public final AtomicLong diskMisses = new AtomicLong();
+    /** Extractions that produced no frame. */
+    public final AtomicLong decodeFailures = new AtomicLong();
+    /** Extractions cancelled before they ran, by the scheduler or because their row moved on. */
+    public final AtomicLong cancellations = new AtomicLong();
+    /** Player seeks superseded by a later one before being issued. */
+    public final AtomicLong coalescedSeeks = new AtomicLong();
+
+    private final LatencyHistogram[] histograms = {
+        retrieverWait, frameDecode, sequentialSeek, sequentialFrame, scale, diskRead, seek
+    };
+
+    // Scheduler of the video on screen, sampled for its queue depth
+    private volatile ExtractionScheduler scheduler;
+
+    private Metrics() {
+    }
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    /**
+     * Sets the scheduler whose queue depth and drops are reported, or null.
+     */
+    public void setScheduler(ExtractionScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Clears the scheduler if it is the one reported.
+     */
+    public void clearScheduler(ExtractionScheduler scheduler) {
+        if (this.scheduler == scheduler) {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Forgets everything recorded so far, to measure a scenario from a clean start.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        memoryHits.set(0);
+        previewHits.set(0);
+        memoryMisses.set(0);
+        diskHits.set(0);
+        diskMisses.set(0);
+        decodeFailures.set(0);
+        cancellations.set(0);
+        coalescedSeeks.set(0);
+    }
+
+    /**
+     * Returns a short multi-line report for the debug overlay.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        long memoryHit = memoryHits.get() + previewHits.get();
+        sb.append("memory ").append(percent(memoryHit, memoryHit + memoryMisses.get()))
+                .append("% (previews ").append(previewHits.get()).append(")  disk ")
+                .append(percent(diskHits.get(), diskHits.get() + diskMisses.get())).append("%\n");
+        ExtractionScheduler current = scheduler;
+        if (current != null) {
+            sb.append("queue ").append(current.getQueueDepth()).append("  dropped ")
+                    .append(current.getDroppedCount()).append("  ");
+        }
+        sb.append("cancelled ").append(cancellations.get()).append("  failed ")
+                .append(decodeFailures.get()).append("  coalesced seeks ")
+                .append(coalescedSeeks.get());
+        for (LatencyHistogram histogram : histograms) {
+            if (histogram.getCount() > 0) {
+                sb.append('\n').append(histogram);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the full report, with the buckets of every histogram, to a new file in dir.
+     * @return The file written.
+     */
+    public File dump(File dir) throws IOException {
+        long now = System.currentTimeMillis();
+        File file = new File(dir, "metrics-" + now + ".txt");
+        StringBuilder sb = new StringBuilder();
+        sb.append("date ").append(new Date(now)).append('\n');
+        sb.append("device ").append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append(" (").append(Build.HARDWARE).append(")\n");
+        sb.append("android ").append(Build.VERSION.RELEASE).append(" api ")
+                .append(Build.VERSION.SDK_INT).append(" build ").append(Build.FINGERPRINT)
+                .append('\n');
+        sb.append("cpus ").append(Runtime.getRuntime().availableProcessors()).append('\n');
+        sb.append('\n').append(this).append("\n\n");
+        for (LatencyHistogram histogram : histograms) {
+            sb.append(histogram.getName()).append('\n');
+            histogram.appendBuckets(sb);
+        }
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static long percent(long part, long total) {
+        return total > 0 ? 100 * part / total : 0;
+    }
+}
@@ -0,0 +1,70 @@
+package com.manhdev.vernazza;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Shows the {@link Metrics} report in a text view, refreshed twice a second while visible.
+ *
+ * The report is built only while the overlay shows, so it costs nothing when hidden.
+ */
+public class MetricsOverlay implements Runnable {
+
+    // In msecs
+    private static final long REFRESH_PERIOD = 500;
+
+    private final TextView textView;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean shown;
+    private boolean resumed;
+
+    /**
+     * @param textView  View showing the report, hidden until the overlay is shown.
+     */
+    public MetricsOverlay(TextView textView) {
+        this.textView = textView;
+    }
+
+    public boolean isShown() {
+        return shown;
+    }
+
+    /**
+     * Shows or hides the overlay. Must be called on the UI thread.
+     */
+    public void setShown(boolean shown) {
+        this.shown = shown;
+        textView.setVisibility(shown ? View.VISIBLE : View.GONE);
+        update();
+    }
+
+    /**
+     * Resumes refreshing, if shown, when the activity resumes.
+     */
+    public void resume() {
+        resumed = true;
+        update();
+    }
+
+    /**
+     * Stops refreshing when the activity pauses.
+     */
+    public void pause() {
+        resumed = false;
+        update();
+    }
+
+    public void run() {
+        textView.setText(Metrics.get().toString());
+        handler.postDelayed(this, REFRESH_PERIOD);
+    }
+
+    private void update() {
+        handler.removeCallbacks(this);
+        if (shown && resumed) {
+            run();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.manhdev.vernazza;
+
+import android.widget.MediaController;
+import android.widget.TextView;
+
+/**
+ * Shows the playback position in a text view, refreshed on every display frame while the view
+ * shows and the position moves.
+ *
+ * <p>The text is only set when the displayed value changes, formatted into a reused buffer, so
+ * following the position costs neither a thread nor garbage. Milliseconds are shown when the
+ * frame list is finer than a second apart, or not evenly spaced. While scrubbing, the position
+ * under the finger is shown instead.</p>
+ *
+ * Ticking stops once playback is paused and nothing is scrubbed; {@link #refresh()} resumes it
+ * when playback starts or a seek completes.
+ */
+public class PositionOverlay implements FrameTicker.Callback {
+
+    private final TextView textView;
+    private final MediaController.MediaPlayerControl player;
+    private final ScrubPreview scrubPreview;
+    private final FrameTicker ticker = new FrameTicker(this);
+    private final TimeFormatter formatter = new TimeFormatter();
+    private ImageAdapter imageAdapter;
+    private boolean started;
+
+    // Value displayed, in the unit of its precision, or -1 to refresh on the next frame
+    private long shownValue = -1;
+    private boolean shownMillis;
+
+    /**
+     * @param textView      View showing the position.
+     * @param player        Player giving the position.
+     * @param scrubPreview  Scrubbing whose position takes over while it lasts.
+     */
+    public PositionOverlay(TextView textView, MediaController.MediaPlayerControl player,
+            ScrubPreview scrubPreview) {
+        this.textView = textView;
+        this.player = player;
+        this.scrubPreview = scrubPreview;
+    }
+
+    /**
+     * Sets the frame list whose interval decides the precision shown.
+     */
+    public void setImageAdapter(ImageAdapter imageAdapter) {
+        this.imageAdapter = imageAdapter;
+    }
+
+    /**
+     * Starts following the position, when the view shows. Must be called on the UI thread.
+     */
+    public void start() {
+        if (!started) {
+            started = true;
+            shownValue = -1;
+            ticker.start();
+        }
+    }
+
+    /**
+     * Stops following the position, when the view hides. Must be called on the UI thread.
+     */
+    public void stop() {
+        started = false;
+        ticker.stop();
+    }
+
+    /**
+     * Resumes ticking after the position may have moved while paused, such as when playback
+     * starts, a seek completes or scrubbing begins. Must be called on the UI thread.
+     */
+    public void refresh() {
+        if (started) {
+            ticker.start();
+        }
+    }
+
+    public void onTick(long frameTimeNanos) {
+        boolean scrubbing = scrubPreview.isScrubbing();
+        if (!scrubbing && !player.isPlaying()) {
+            // Shows the position once more, then sleeps until refreshed
+            ticker.stop();
+        }
+        long millis = scrubbing
+                ? scrubPreview.getTargetTime() / 1000 : player.getCurrentPosition();
+        boolean showMillis = imageAdapter != null && imageAdapter.getInterval() < 1000;
+        long value = showMillis ? millis : millis / 1000;
+        if (value == shownValue && showMillis == shownMillis) {
+            return;
+        }
+        shownValue = value;
+        shownMillis = showMillis;
+        int length = formatter.format(millis, showMillis);
+        textView.setText(formatter.getBuffer(), 0, length);
+    }
+}
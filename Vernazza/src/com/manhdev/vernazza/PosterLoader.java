@@ -0,0 +1,274 @@
+package com.manhdev.vernazza;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Loads small poster frames of videos into image views, such as the rows of the file dialog.
+ *
+ * <p>Posters are decoded from a sync frame at {@link MediaIndex#posterTime(long)} on a couple
+ * of background workers, newest request first, and kept as JPEG files under the application
+ * cache directory, keyed by the identity of the video file, so a folder visited before shows
+ * them without decoding again. Posters loaded are also kept in memory by path, so that binding a
+ * row does not touch the file system; the identity is computed by the worker. A video replaced
+ * under the same path thus keeps its former poster until it leaves the memory cache.</p>
+ *
+ * Binding a view cancels the request it was bound to, so rows recycled while scrolling do not
+ * leave a backlog of decodes behind. All methods must be called on the UI thread.
+ */
+public class PosterLoader {
+
+    private static final String LOG_TAG = "PosterLoader";
+    private static final String DIRECTORY = "posters";
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 80;
+    private static final int WORKER_COUNT = 2;
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 32;
+
+    /** Size of the posters, in dips. */
+    public static final int POSTER_WIDTH = 48;
+    public static final int POSTER_HEIGHT = 36;
+
+    private static PosterLoader instance;
+
+    private final int width;
+    private final int height;
+    private final MemoryCache<String, Bitmap> memory;
+    // Identities of the videos no poster could be decoded from, whichever their path
+    private final Set<String> failed = Collections.synchronizedSet(new HashSet<String>());
+    private final File cacheDir;
+    private DiskLruCache disk;
+    private boolean diskOpened;
+
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Request each view is bound to
+    private final WeakHashMap<ImageView, Request> requests = new WeakHashMap<ImageView, Request>();
+
+    /**
+     * Queue handing out the newest request first, most likely to be on screen.
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable r) {
+            return offerFirst(r);
+        }
+    }
+
+    private PosterLoader(Context context) {
+        float density = context.getResources().getDisplayMetrics().density;
+        width = Math.round(POSTER_WIDTH * density);
+        height = Math.round(POSTER_HEIGHT * density);
+        cacheDir = context.getCacheDir();
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapBytes = am.getMemoryClass() * 1024L * 1024L;
+        memory = new MemoryCache<String, Bitmap>(heapBytes / MEMORY_CACHE_HEAP_FRACTION) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+
+        executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 0, TimeUnit.SECONDS,
+                new LifoQueue(), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, LOG_TAG);
+                    }
+                });
+    }
+
+    /**
+     * Returns the process wide loader.
+     */
+    public static synchronized PosterLoader get(Context context) {
+        if (instance == null) {
+            instance = new PosterLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Shows the poster of a video in imageView, at once if it is in memory, cleared until it
+     * is loaded otherwise.
+     * @param path      Path of the video file.
+     * @param imageView View to show the poster in.
+     */
+    public void bind(String path, ImageView imageView) {
+        Request current = requests.get(imageView);
+        if (current != null && current.path.equals(path)) {
+            // Still loading
+            return;
+        }
+        unbind(imageView);
+
+        Bitmap bitmap = memory.get(path);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        imageView.setImageDrawable(null);
+        Request request = new Request(path, imageView);
+        requests.put(imageView, request);
+        executor.execute(request);
+    }
+
+    /**
+     * Cancels the request imageView is bound to, if any, for instance when its row scrolls
+     * away or shows something else than a video.
+     */
+    public void unbind(ImageView imageView) {
+        Request request = requests.remove(imageView);
+        if (request != null) {
+            request.cancelled = true;
+            executor.remove(request);
+        }
+    }
+
+    /**
+     * Cancels all requests, when the views they are bound to go away.
+     */
+    public void cancelAll() {
+        for (Request request : requests.values()) {
+            request.cancelled = true;
+            executor.remove(request);
+        }
+        requests.clear();
+    }
+
+    private synchronized DiskLruCache getDisk() {
+        if (!diskOpened) {
+            diskOpened = true;
+            try {
+                disk = new DiskLruCache(new File(cacheDir, DIRECTORY), MAX_BYTES);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+        }
+        return disk;
+    }
+
+    /**
+     * Loads the poster of one video from disk or decodes it, then delivers it to its view if
+     * still bound to it.
+     */
+    private class Request implements Runnable {
+        final String path;
+        final WeakReference<ImageView> imageViewReference;
+        volatile boolean cancelled;
+        Bitmap bitmap;
+
+        Request(String path, ImageView imageView) {
+            this.path = path;
+            imageViewReference = new WeakReference<ImageView>(imageView);
+        }
+
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            String identity = DiskFrameCache.videoIdentity(path);
+            if (!failed.contains(identity)) {
+                DiskLruCache cache = getDisk();
+                bitmap = cache != null ? read(cache, identity) : null;
+                if (bitmap == null) {
+                    if (cancelled) {
+                        return;
+                    }
+                    bitmap = decode(path);
+                    if (bitmap == null) {
+                        failed.add(identity);
+                    } else if (cache != null) {
+                        DiskFrameCache.putJpeg(cache, identity, bitmap, JPEG_QUALITY);
+                    }
+                }
+            }
+            if (bitmap != null) {
+                memory.put(path, bitmap);
+            }
+            handler.post(new Runnable() {
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        void deliver() {
+            ImageView imageView = imageViewReference.get();
+            if (imageView != null && requests.get(imageView) == this) {
+                requests.remove(imageView);
+                if (bitmap != null) {
+                    imageView.setImageBitmap(bitmap);
+                }
+            }
+        }
+
+        /**
+         * Decodes the poster frame and scales it to fit the poster size.
+         */
+        private Bitmap decode(String path) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(path);
+                String duration = retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_DURATION);
+                long timeUs = duration != null ? MediaIndex.posterTime(Long.parseLong(duration)) : 0;
+                if (cancelled) {
+                    return null;
+                }
+                Bitmap frame = retriever.getFrameAtTime(timeUs,
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+                if (frame == null) {
+                    return null;
+                }
+                float scale = Math.min((float) width / frame.getWidth(),
+                        (float) height / frame.getHeight());
+                Bitmap poster = Bitmap.createScaledBitmap(frame,
+                        Math.max(1, Math.round(frame.getWidth() * scale)),
+                        Math.max(1, Math.round(frame.getHeight() * scale)), true);
+                if (poster != frame) {
+                    frame.recycle();
+                }
+                return poster;
+            } catch (RuntimeException e) {
+                // Not a video the platform can read
+                Log.w(LOG_TAG, "cannot decode poster of " + path + ": " + e);
+                return null;
+            } finally {
+                retriever.release();
+            }
+        }
+    }
+
+    private static Bitmap read(DiskLruCache cache, String key) {
+        File file = cache.get(key);
+        return file != null ? BitmapFactory.decodeFile(file.getPath()) : null;
+    }
+}
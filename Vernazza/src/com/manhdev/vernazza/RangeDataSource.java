@@ -0,0 +1,202 @@
+package com.manhdev.vernazza;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+
+/**
+ * Reads a remote video on demand with HTTP range requests, keeping the fetched blocks in a
+ * memory cache.
+ *
+ * <p>Frame extraction only touches the container index and the samples around each requested
+ * time. Fetching just those blocks makes a strip of a large remote video cost a few megabytes
+ * instead of the whole file. Index blocks are read again for every frame and stay cached.</p>
+ *
+ * Concurrent reads of the same block share a single request. The server must honour range
+ * requests; a plain 200 response fails the read.
+ */
+public class RangeDataSource implements ByteSource {
+
+    // Bytes fetched by a single request
+    static final int BLOCK_SIZE = 256 * 1024;
+    private static final long CACHE_SIZE = 16 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final URL url;
+    private final MemoryCache<Long, byte[]> blocks = new MemoryCache<Long, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    // Blocks being fetched by some thread
+    private final HashSet<Long> inFlight = new HashSet<Long>();
+
+    private long length = -1;
+    private String contentType;
+    private long requestCount;
+    private long fetchedBytes;
+
+    /**
+     * @param url       Location of the video.
+     */
+    public RangeDataSource(URL url) {
+        this.url = url;
+    }
+
+    public long getLength() throws IOException {
+        synchronized (this) {
+            if (length >= 0) {
+                return length;
+            }
+        }
+        // The first block is needed anyway, its response tells the length
+        getBlock(0);
+        synchronized (this) {
+            return length;
+        }
+    }
+
+    public synchronized String getContentType() {
+        return contentType;
+    }
+
+    public String getOrigin() {
+        return url.toString();
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+        long total = getLength();
+        if (position >= total) {
+            return -1;
+        }
+        long index = position / BLOCK_SIZE;
+        byte[] block = getBlock(index);
+        int start = (int) (position - index * BLOCK_SIZE);
+        if (start >= block.length) {
+            return -1;
+        }
+        count = Math.min(count, block.length - start);
+        System.arraycopy(block, start, buffer, offset, count);
+        return count;
+    }
+
+    /**
+     * Returns the number of range requests made and bytes fetched so far.
+     */
+    @Override
+    public synchronized String toString() {
+        return "RangeDataSource[requests=" + requestCount + ",fetched=" + fetchedBytes
+                + ",length=" + length + "," + blocks + "]";
+    }
+
+    private byte[] getBlock(long index) throws IOException {
+        Long key = index;
+        synchronized (this) {
+            try {
+                while (true) {
+                    byte[] block = blocks.get(key);
+                    if (block != null) {
+                        return block;
+                    }
+                    if (inFlight.add(key)) {
+                        break;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        try {
+            byte[] block = fetch(index);
+            blocks.put(key, block);
+            return block;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    private byte[] fetch(long index) throws IOException {
+        long start = index * BLOCK_SIZE;
+        long end = start + BLOCK_SIZE - 1;
+        synchronized (this) {
+            if (length >= 0) {
+                end = Math.min(end, length - 1);
+            }
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP " + code + " for range of " + url);
+            }
+            long total = parseTotal(connection.getHeaderField("Content-Range"));
+            synchronized (this) {
+                if (total >= 0) {
+                    length = total;
+                }
+                if (contentType == null) {
+                    contentType = connection.getContentType();
+                }
+                if (length < 0) {
+                    throw new IOException("no length for " + url);
+                }
+                end = Math.min(end, length - 1);
+            }
+
+            byte[] block = new byte[(int) (end - start + 1)];
+            InputStream in = connection.getInputStream();
+            try {
+                int filled = 0;
+                while (filled < block.length) {
+                    int read = in.read(block, filled, block.length - filled);
+                    if (read < 0) {
+                        throw new IOException("short range response for " + url);
+                    }
+                    filled += read;
+                }
+            } finally {
+                in.close();
+            }
+            synchronized (this) {
+                requestCount++;
+                fetchedBytes += block.length;
+            }
+            return block;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Parses the total length from a Content-Range such as "bytes 0-99/1000".
+     */
+    static long parseTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // Length given as "*"
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.manhdev.vernazza;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.media.MediaMetadataRetriever;
+import android.webkit.URLUtil;
+
+/**
+ * Bounded pool of MediaMetadataRetriever instances opened on the same video.
+ *
+ * Each retriever is opened on its own file descriptor or connection, so that frames can be
+ * decoded by several threads at once. Retrievers are created lazily, up to the pool size.
+ */
+public class RetrieverPool {
+
+    private final String path;
+    private final int maxSize;
+    private final ArrayList<MediaMetadataRetriever> idle = new ArrayList<MediaMetadataRetriever>();
+    private int created;
+    private boolean closed;
+
+    /**
+     * @param path      Local path or http URL of the video.
+     * @param maxSize   Maximum number of retrievers open at once.
+     */
+    public RetrieverPool(String path, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize < 1");
+        }
+        this.path = path;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns an idle retriever, opening a new one if the pool is not full and waiting for one
+     * to be released otherwise. The caller must hand it back with {@link #release}.
+     * @throws IOException              If the video cannot be opened or the pool is closed.
+     * @throws InterruptedException     If interrupted while waiting for a retriever.
+     */
+    public MediaMetadataRetriever acquire() throws IOException, InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("pool closed");
+                }
+                if (!idle.isEmpty()) {
+                    return idle.remove(idle.size() - 1);
+                }
+                if (created < maxSize) {
+                    created++;
+                    break;
+                }
+                wait();
+            }
+        }
+        // Opening parses the container, so it is done without holding the lock
+        try {
+            return open();
+        } catch (IOException e) {
+            synchronized (this) {
+                created--;
+                notify();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                created--;
+                notify();
+            }
+            throw new IOException("cannot open " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Hands back a retriever obtained from {@link #acquire}.
+     */
+    public void release(MediaMetadataRetriever retriever) {
+        synchronized (this) {
+            if (!closed) {
+                idle.add(retriever);
+                notify();
+                return;
+            }
+            created--;
+        }
+        retriever.release();
+    }
+
+    /**
+     * Releases idle retrievers; retrievers in use are released when handed back.
+     */
+    public void close() {
+        ArrayList<MediaMetadataRetriever> toRelease;
+        synchronized (this) {
+            closed = true;
+            toRelease = new ArrayList<MediaMetadataRetriever>(idle);
+            created -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (MediaMetadataRetriever retriever : toRelease) {
+            retriever.release();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private MediaMetadataRetriever open() throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        if (URLUtil.isNetworkUrl(path)) {
+            try {
+                retriever.setDataSource(path, new HashMap<String, String>());
+            } catch (RuntimeException e) {
+                retriever.release();
+                throw e;
+            }
+            return retriever;
+        }
+        FileInputStream input = new FileInputStream(path);
+        try {
+            // The retriever keeps its own reference to the descriptor
+            retriever.setDataSource(input.getFD());
+        } catch (RuntimeException e) {
+            retriever.release();
+            throw e;
+        } finally {
+            input.close();
+        }
+        return retriever;
+    }
+}
@@ -0,0 +1,130 @@
+package com.manhdev.vernazza;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Finds the scene changes of a video by comparing low resolution samples of its frames.
+ *
+ * <p>The video is decoded once, front to back, and the luma plane of a few frames per second is
+ * sampled into a small grid. Two signatures are compared between consecutive samples: the luma
+ * histogram, which barely moves with camera or subject motion, and the mean pixel difference,
+ * which barely moves with gradual lighting changes. A cut is reported when both jump.</p>
+ *
+ * All signatures are kept in reused primitive arrays, so the analysis costs little more than
+ * the decoding itself.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class SceneDetector {
+
+    private static final String LOG_TAG = "SceneDetector";
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 36;
+    private static final int PIXELS = WIDTH * HEIGHT;
+    private static final int BINS = 32;
+
+    // Time between compared samples, in usecs
+    private static final long SAMPLE_INTERVAL = 100000;
+    // Shortest scene reported, in usecs
+    private static final long MIN_SCENE_LENGTH = 1000000;
+
+    // Fraction of the pixels that must change histogram bin
+    private static final float HISTOGRAM_THRESHOLD = 0.3f;
+    // Mean absolute luma difference between the samples
+    private static final int DIFFERENCE_THRESHOLD = 24;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int[] previous = new int[PIXELS];
+    private final int[] histogram = new int[BINS];
+    private final int[] previousHistogram = new int[BINS];
+    private boolean hasPrevious;
+
+    private long[] cuts = new long[INITIAL_CAPACITY];
+    private int cutCount;
+
+    /**
+     * Returns true if the platform provides the codec API the detection relies on.
+     */
+    public static boolean isSupported() {
+        return SequentialFrameDecoder.isSupported();
+    }
+
+    /**
+     * Analyses the whole video. Blocks for a fraction of the video duration, not for the UI
+     * thread. Decoding stops early if the calling thread is interrupted.
+     * @param path  Local path of the video.
+     * @return      Ascending start times of the scenes in usecs, starting at 0.
+     */
+    public static long[] detect(String path) throws IOException {
+        final SceneDetector detector = new SceneDetector();
+        final long[] lastTime = new long[1];
+        long start = SystemClock.elapsedRealtime();
+        try {
+            new SequentialFrameDecoder(WIDTH, HEIGHT).decodeLuma(path, 0, Long.MAX_VALUE,
+                    SAMPLE_INTERVAL, new SequentialFrameDecoder.FrameSink() {
+                public boolean onFrame(long timeUs, int[] luma) {
+                    detector.sample(timeUs, luma);
+                    lastTime[0] = timeUs;
+                    return !Thread.currentThread().isInterrupted();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Unsupported output format or codec failure
+            throw new IOException("cannot decode " + path, e);
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, detector.cutCount + " scenes in " + elapsed + "ms, "
+                + (lastTime[0] / 1000 / elapsed) + "x real-time");
+        long[] result = new long[detector.cutCount];
+        System.arraycopy(detector.cuts, 0, result, 0, result.length);
+        return result;
+    }
+
+    private SceneDetector() {
+        addCut(0);
+    }
+
+    private void sample(long timeUs, int[] luma) {
+        for (int i = 0; i < BINS; i++) {
+            histogram[i] = 0;
+        }
+        long difference = 0;
+        for (int i = 0; i < PIXELS; i++) {
+            int value = luma[i];
+            histogram[value * BINS >> 8]++;
+            difference += Math.abs(value - previous[i]);
+        }
+
+        if (hasPrevious) {
+            int moved = 0;
+            for (int i = 0; i < BINS; i++) {
+                moved += Math.abs(histogram[i] - previousHistogram[i]);
+            }
+            // Every pixel changing bin counts twice, once for each bin
+            boolean cut = moved > 2 * PIXELS * HISTOGRAM_THRESHOLD
+                    && difference > (long) PIXELS * DIFFERENCE_THRESHOLD;
+            if (cut && timeUs - cuts[cutCount - 1] >= MIN_SCENE_LENGTH) {
+                addCut(timeUs);
+            }
+        }
+
+        System.arraycopy(luma, 0, previous, 0, PIXELS);
+        System.arraycopy(histogram, 0, previousHistogram, 0, BINS);
+        hasPrevious = true;
+    }
+
+    private void addCut(long timeUs) {
+        if (cutCount == cuts.length) {
+            long[] grown = new long[cutCount * 2];
+            System.arraycopy(cuts, 0, grown, 0, cutCount);
+            cuts = grown;
+        }
+        cuts[cutCount++] = timeUs;
+    }
+}
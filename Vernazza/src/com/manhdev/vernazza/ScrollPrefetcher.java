@@ -0,0 +1,116 @@
+package com.manhdev.vernazza;
+
+/**
+ * Requests frames for the rows the list is about to scroll into, based on the scroll direction
+ * and velocity.
+ *
+ * <p>The prefetch window is widest when scrolling slowly, shrinks as the list speeds up and is
+ * empty during fast flings, when the decoder could not keep up anyway and the rows would be
+ * skipped over. Once the list settles the window ahead of the last direction is filled.</p>
+ */
+public class ScrollPrefetcher {
+
+    private static final int MIN_AHEAD = 2;
+    private static final int MAX_AHEAD = 12;
+    private static final int BEHIND = 2;
+
+    // Velocity in rows/sec above which nothing is prefetched
+    private static final float FLING_ROWS_PER_SEC = 20f;
+
+    // A pause longer than this between scroll events resets the velocity estimate
+    private static final long VELOCITY_TIMEOUT_MS = 500;
+
+    private static final float SMOOTHING = 0.5f;
+
+    private final FrameExtractor frameExtractor;
+
+    private int lastFirst = -1;
+    private long lastTimeMs;
+    private float velocity;
+    private int direction = 1;
+    private int visibleCount;
+    private boolean idle = true;
+
+    public ScrollPrefetcher(FrameExtractor frameExtractor) {
+        this.frameExtractor = frameExtractor;
+    }
+
+    /**
+     * Feeds a scroll position.
+     * @param first         First visible row.
+     * @param count         Number of visible rows.
+     * @param nowMs         Current uptime in milliseconds.
+     */
+    public void onScroll(int first, int count, long nowMs) {
+        visibleCount = count;
+        if (first == lastFirst) {
+            return;
+        }
+        if (lastFirst >= 0) {
+            long elapsed = nowMs - lastTimeMs;
+            if (elapsed > VELOCITY_TIMEOUT_MS) {
+                velocity = 0;
+            } else if (elapsed > 0) {
+                float instant = (first - lastFirst) * 1000f / elapsed;
+                velocity = SMOOTHING * instant + (1 - SMOOTHING) * velocity;
+            }
+            direction = first > lastFirst ? 1 : -1;
+        }
+        lastFirst = first;
+        lastTimeMs = nowMs;
+        prefetch();
+    }
+
+    /**
+     * Feeds a change of scroll state.
+     * @param isIdle    True once the list stopped moving.
+     */
+    public void onScrollStateChanged(boolean isIdle) {
+        idle = isIdle;
+        if (idle) {
+            velocity = 0;
+            prefetch();
+        }
+    }
+
+    /**
+     * Returns the number of rows to prefetch ahead of the visible ones at the current velocity.
+     */
+    int getWindow() {
+        float speed = Math.abs(velocity);
+        if (!idle && speed >= FLING_ROWS_PER_SEC) {
+            return 0;
+        }
+        int ahead = MIN_AHEAD + Math.round((MAX_AHEAD - MIN_AHEAD) * (1 - speed / FLING_ROWS_PER_SEC));
+        // Prefetched frames must not push the visible ones out of the cache
+        int room = frameExtractor.getCacheCapacity() - 2 * visibleCount - BEHIND;
+        return Math.max(0, Math.min(ahead, room));
+    }
+
+    private void prefetch() {
+        if (lastFirst < 0) {
+            return;
+        }
+        int ahead = getWindow();
+        frameExtractor.setPrefetchWindow(ahead);
+        if (ahead == 0) {
+            return;
+        }
+        int last = lastFirst + visibleCount - 1;
+        if (direction > 0) {
+            for (int i = 1; i <= ahead; i++) {
+                frameExtractor.prefetch(last + i);
+            }
+            for (int i = 1; idle && i <= BEHIND; i++) {
+                frameExtractor.prefetch(lastFirst - i);
+            }
+        } else {
+            for (int i = 1; i <= ahead; i++) {
+                frameExtractor.prefetch(lastFirst - i);
+            }
+            for (int i = 1; idle && i <= BEHIND; i++) {
+                frameExtractor.prefetch(last + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.manhdev.vernazza;
+
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.widget.ImageView;
+import android.widget.MediaController;
+
+/**
+ * Lets the user scrub through the video by dragging horizontally over it.
+ *
+ * <p>While dragging, an overlay shows the frame closest to the position under the finger that
+ * the frame list already holds in memory, updated once per display frame. Nothing is decoded
+ * and the player is not touched, so scrubbing keeps up with the display however long the video.
+ * The player seeks once, when the finger is lifted.</p>
+ *
+ * The width of the screen spans the whole video, starting from the position playing when the
+ * drag began.
+ */
+public class ScrubPreview implements FrameTicker.Callback {
+
+    private final ImageView overlay;
+    private final MediaController.MediaPlayerControl player;
+    private final SeekController seekController;
+    private final FrameTicker ticker = new FrameTicker(this);
+    private final int touchSlop;
+    private ImageAdapter imageAdapter;
+
+    private float downX;
+    private float downY;
+    private boolean scrubbing;
+    private long startUs;
+    private long durationUs;
+    private long targetUs;
+    private long shownUs = -1;
+
+    /**
+     * @param overlay           View showing the frames, hidden unless scrubbing.
+     * @param player            Player giving the position and duration of the video.
+     * @param seekController    Seeks the player when scrubbing ends.
+     */
+    public ScrubPreview(ImageView overlay, MediaController.MediaPlayerControl player,
+            SeekController seekController) {
+        this.overlay = overlay;
+        this.player = player;
+        this.seekController = seekController;
+        touchSlop = ViewConfiguration.get(overlay.getContext()).getScaledTouchSlop();
+    }
+
+    /**
+     * Sets the frame list whose cached frames are shown.
+     */
+    public void setImageAdapter(ImageAdapter imageAdapter) {
+        this.imageAdapter = imageAdapter;
+    }
+
+    public boolean isScrubbing() {
+        return scrubbing;
+    }
+
+    /**
+     * Returns the position under the finger, in usecs. Only meaningful while scrubbing.
+     */
+    public long getTargetTime() {
+        return targetUs;
+    }
+
+    /**
+     * Follows a touch gesture. Must be called on the UI thread.
+     * @return True if the event belongs to a scrub and should not be handled otherwise.
+     */
+    public boolean onTouchEvent(MotionEvent ev) {
+        switch (ev.getActionMasked()) {
+        case MotionEvent.ACTION_DOWN:
+            downX = ev.getX();
+            downY = ev.getY();
+            return false;
+        case MotionEvent.ACTION_MOVE:
+            float dx = ev.getX() - downX;
+            if (!scrubbing) {
+                if (Math.abs(dx) <= touchSlop || Math.abs(dx) <= Math.abs(ev.getY() - downY)
+                        || !begin()) {
+                    return false;
+                }
+            }
+            int width = overlay.getRootView().getWidth();
+            long offset = width > 0 ? (long) (dx / width * durationUs) : 0;
+            targetUs = Math.max(0, Math.min(durationUs, startUs + offset));
+            return true;
+        case MotionEvent.ACTION_UP:
+            if (scrubbing) {
+                end();
+                seekController.seekTo(targetUs);
+                return true;
+            }
+            return false;
+        case MotionEvent.ACTION_CANCEL:
+            if (scrubbing) {
+                end();
+                return true;
+            }
+            return false;
+        default:
+            return scrubbing;
+        }
+    }
+
+    /**
+     * Abandons a scrub in progress without seeking.
+     */
+    public void cancel() {
+        if (scrubbing) {
+            end();
+        }
+    }
+
+    public void onTick(long frameTimeNanos) {
+        // Frames decoded meanwhile may come closer, until one is shown for this position
+        if (targetUs != shownUs && imageAdapter.showNearestFrame(targetUs, overlay)) {
+            shownUs = targetUs;
+        }
+    }
+
+    private boolean begin() {
+        int duration = player.getDuration();
+        if (imageAdapter == null || duration <= 0) {
+            // Not prepared yet
+            return false;
+        }
+        durationUs = duration * 1000L;
+        startUs = player.getCurrentPosition() * 1000L;
+        targetUs = startUs;
+        shownUs = -1;
+        scrubbing = true;
+        overlay.setVisibility(View.VISIBLE);
+        ticker.start();
+        return true;
+    }
+
+    private void end() {
+        scrubbing = false;
+        ticker.stop();
+        overlay.setVisibility(View.GONE);
+        imageAdapter.clearFrame(overlay);
+    }
+}
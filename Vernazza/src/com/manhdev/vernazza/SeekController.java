@@ -0,0 +1,186 @@
+package com.manhdev.vernazza;
+
+import java.util.Arrays;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.MediaController;
+
+/**
+ * Issues seeks to the player, one at a time and on the UI thread, so that bursts of requests
+ * never build a backlog.
+ *
+ * <p>Only the latest request matters: while a seek is in flight, newer requests replace each
+ * other and the last one is issued once the player reports completion. During a burst of
+ * requests the player is sent to the nearest sync frame, which it can show without decoding
+ * the frames in between. Once requests stop for a moment, one precise seek settles on the
+ * requested time.</p>
+ *
+ * The latency of every seek, from issue to completion, is recorded.
+ */
+public class SeekController {
+
+    private static final String LOG_TAG = "SeekController";
+
+    // Requests closer together than this form a burst, in msecs
+    private static final long BURST_WINDOW = 300;
+    // Quiet time after a burst before the precise seek, in msecs
+    private static final long SETTLE_DELAY = 200;
+    // Time after which a seek whose completion was never reported is given up on, in msecs
+    private static final long SEEK_TIMEOUT = 2000;
+
+    private final MediaController.MediaPlayerControl player;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long[] syncTimes;
+
+    private long lastRequestTime = -BURST_WINDOW;
+    private long settleTarget;
+    private boolean hasNext;
+    private long nextTarget;
+    private boolean inFlight;
+    // In nsecs
+    private long issueTime;
+
+    private int seekCount;
+    private int coalescedCount;
+    private long totalLatency;
+    private long maxLatency;
+
+    private final Runnable settle = new Runnable() {
+        public void run() {
+            request(settleTarget);
+        }
+    };
+
+    private final Runnable timeout = new Runnable() {
+        public void run() {
+            Log.w(LOG_TAG, "seek not completed after " + SEEK_TIMEOUT + "ms");
+            onSeekComplete();
+        }
+    };
+
+    /**
+     * @param player    Player to seek, used on the UI thread only.
+     */
+    public SeekController(MediaController.MediaPlayerControl player) {
+        this.player = player;
+    }
+
+    /**
+     * Sets the times of the sync frames of the video, enabling fast seeks during bursts.
+     * @param usecs     Ascending sync frame times in usecs, or null.
+     */
+    public void setSyncTimes(long[] usecs) {
+        syncTimes = usecs;
+    }
+
+    /**
+     * Requests a seek. Must be called on the UI thread.
+     * @param usecs     Time to show in usecs.
+     */
+    public void seekTo(long usecs) {
+        long now = SystemClock.uptimeMillis();
+        boolean burst = inFlight || now - lastRequestTime < BURST_WINDOW;
+        lastRequestTime = now;
+        handler.removeCallbacks(settle);
+
+        long sync = nearestSyncTime(usecs);
+        if (burst && sync != usecs) {
+            request(sync);
+            settleTarget = usecs;
+            handler.postDelayed(settle, SETTLE_DELAY);
+        } else {
+            request(usecs);
+        }
+    }
+
+    /**
+     * Reports that the player completed the seek in flight. Must be called on the UI thread.
+     */
+    public void onSeekComplete() {
+        handler.removeCallbacks(timeout);
+        if (!inFlight) {
+            return;
+        }
+        inFlight = false;
+        long latencyNanos = System.nanoTime() - issueTime;
+        Metrics.get().seek.record(latencyNanos);
+        long latency = latencyNanos / 1000000;
+        seekCount++;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        issueNext();
+    }
+
+    /**
+     * Drops pending requests, for instance when the player is paused or reset.
+     */
+    public void cancel() {
+        handler.removeCallbacks(settle);
+        handler.removeCallbacks(timeout);
+        hasNext = false;
+        inFlight = false;
+    }
+
+    /**
+     * Returns the mean time between issuing a seek and its completion, in msecs.
+     */
+    public long getAverageLatency() {
+        return seekCount > 0 ? totalLatency / seekCount : 0;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "SeekController[seeks=" + seekCount + ",coalesced=" + coalescedCount
+                + ",avgLatency=" + getAverageLatency() + "ms,maxLatency=" + maxLatency + "ms]";
+    }
+
+    private void request(long usecs) {
+        if (hasNext) {
+            coalescedCount++;
+            Metrics.get().coalescedSeeks.incrementAndGet();
+        }
+        hasNext = true;
+        nextTarget = usecs;
+        if (!inFlight) {
+            issueNext();
+        }
+    }
+
+    private void issueNext() {
+        if (!hasNext) {
+            return;
+        }
+        hasNext = false;
+        inFlight = true;
+        issueTime = System.nanoTime();
+        handler.postDelayed(timeout, SEEK_TIMEOUT);
+        player.seekTo((int) (nextTarget / 1000));
+    }
+
+    private long nearestSyncTime(long usecs) {
+        long[] times = syncTimes;
+        if (times == null || times.length == 0) {
+            return usecs;
+        }
+        int index = Arrays.binarySearch(times, usecs);
+        if (index >= 0) {
+            return usecs;
+        }
+        int after = -index - 1;
+        if (after == 0) {
+            return times[0];
+        }
+        if (after == times.length) {
+            return times[times.length - 1];
+        }
+        long before = times[after - 1];
+        return usecs - before <= times[after] - usecs ? before : times[after];
+    }
+}
@@ -0,0 +1,275 @@
+package com.manhdev.vernazza;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Decodes a time range of a video once, front to back, and samples the frames that fall on a
+ * fixed cadence.
+ *
+ * <p>Neighbouring frames of a dense strip share their GOP. Seeking to each of them decodes that
+ * GOP again and again; decoding the range sequentially costs a single pass. Decoded frames are
+ * converted from YUV straight to a downscaled ARGB buffer which is reused for every frame.</p>
+ *
+ * Only planar and semi-planar YUV 4:2:0 decoder output is supported. Other color formats fail
+ * with an {@link UnsupportedOperationException} and callers fall back to per-frame extraction.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class SequentialFrameDecoder {
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    /**
+     * Receives the sampled frames.
+     */
+    public interface FrameSink {
+        /**
+         * @param timeUs    Cadence point the frame was sampled for, in usecs.
+         * @param argb      Frame pixels, row after row. Only valid during the call.
+         * @return          False to stop decoding.
+         */
+        boolean onFrame(long timeUs, int[] argb);
+    }
+
+    private final int width;
+    private final int height;
+    private final int[] argb;
+    private int[] columnMap;
+
+    /**
+     * @param width     Width of the sampled frames.
+     * @param height    Height of the sampled frames.
+     */
+    public SequentialFrameDecoder(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.argb = new int[width * height];
+    }
+
+    /**
+     * Returns true if the platform provides the codec API this decoder relies on.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Decodes the video at path from startUs and samples a frame for each cadence point up to
+     * endUs. Each point gets the first frame presented at or after it.
+     * @param path          Local path of the video.
+     * @param startUs       First cadence point in usecs.
+     * @param endUs         Last cadence point in usecs, inclusive.
+     * @param cadenceUs     Time between cadence points in usecs.
+     * @param sink          Receiver of the sampled frames.
+     */
+    public void decode(String path, long startUs, long endUs, long cadenceUs, FrameSink sink)
+            throws IOException {
+        decode(path, startUs, endUs, cadenceUs, sink, false);
+    }
+
+    /**
+     * Like {@link #decode}, but hands the sink the luma plane alone, one value from 0 to 255 per
+     * pixel, and the presentation time of the frame instead of the cadence point. Frames are
+     * sampled at most once, even if they serve several cadence points. Skipping the color
+     * conversion makes this suited to analysing whole videos.
+     */
+    public void decodeLuma(String path, long startUs, long endUs, long cadenceUs, FrameSink sink)
+            throws IOException {
+        decode(path, startUs, endUs, cadenceUs, sink, true);
+    }
+
+    private void decode(String path, long startUs, long endUs, long cadenceUs, FrameSink sink,
+            boolean lumaOnly) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(path);
+            MediaFormat format = selectVideoTrack(extractor);
+            if (format == null) {
+                throw new IOException("no video track in " + path);
+            }
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            run(extractor, codec, startUs, endUs, cadenceUs, sink, lumaOnly);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // Not started
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static MediaFormat selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private void run(MediaExtractor extractor, MediaCodec codec, long startUs, long endUs,
+            long cadenceUs, FrameSink sink, boolean lumaOnly) {
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaFormat outputFormat = codec.getOutputFormat();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long nextUs = startUs;
+        boolean inputDone = false;
+
+        while (nextUs <= endUs) {
+            if (!inputDone) {
+                int inIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (inIndex >= 0) {
+                    int size = extractor.readSampleData(inputBuffers[inIndex], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int outIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                outputFormat = codec.getOutputFormat();
+            } else if (outIndex >= 0) {
+                boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (info.size > 0 && info.presentationTimeUs >= nextUs) {
+                    ByteBuffer buffer = outputBuffers[outIndex];
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    convert(buffer.slice(), outputFormat, lumaOnly);
+                    if (lumaOnly) {
+                        if (!sink.onFrame(info.presentationTimeUs, argb)) {
+                            codec.releaseOutputBuffer(outIndex, false);
+                            return;
+                        }
+                        while (nextUs <= info.presentationTimeUs) {
+                            nextUs += cadenceUs;
+                        }
+                    } else {
+                        // One frame serves every cadence point it is the first frame after
+                        while (nextUs <= endUs && nextUs <= info.presentationTimeUs) {
+                            if (!sink.onFrame(nextUs, argb)) {
+                                codec.releaseOutputBuffer(outIndex, false);
+                                return;
+                            }
+                            nextUs += cadenceUs;
+                        }
+                    }
+                }
+                codec.releaseOutputBuffer(outIndex, false);
+                if (endOfStream) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame to the downscaled ARGB buffer, sampling the nearest pixel.
+     * @param lumaOnly  True to store the luma of each pixel instead of its color.
+     */
+    private void convert(ByteBuffer yuv, MediaFormat format, boolean lumaOnly) {
+        int colorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        boolean semiPlanar;
+        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+            semiPlanar = true;
+        } else if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+            semiPlanar = false;
+        } else {
+            throw new UnsupportedOperationException("color format " + colorFormat);
+        }
+
+        int srcWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        int srcHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int stride = getInteger(format, "stride", srcWidth);
+        int sliceHeight = getInteger(format, "slice-height", srcHeight);
+        int cropLeft = getInteger(format, "crop-left", 0);
+        int cropTop = getInteger(format, "crop-top", 0);
+        int cropWidth = getInteger(format, "crop-right", srcWidth - 1) - cropLeft + 1;
+        int cropHeight = getInteger(format, "crop-bottom", srcHeight - 1) - cropTop + 1;
+
+        if (columnMap == null) {
+            columnMap = new int[width];
+        }
+        for (int x = 0; x < width; x++) {
+            columnMap[x] = cropLeft + x * cropWidth / width;
+        }
+
+        int chromaOffset = stride * sliceHeight;
+        int chromaStride = semiPlanar ? stride : stride / 2;
+        int vOffset = chromaOffset + chromaStride * (sliceHeight / 2);
+
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int srcY = cropTop + y * cropHeight / height;
+            int lumaRow = srcY * stride;
+            int chromaRow = chromaOffset + (srcY / 2) * chromaStride;
+            int vRow = vOffset + (srcY / 2) * chromaStride;
+            if (lumaOnly) {
+                for (int x = 0; x < width; x++) {
+                    argb[out++] = yuv.get(lumaRow + columnMap[x]) & 0xff;
+                }
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                int srcX = columnMap[x];
+                int luma = yuv.get(lumaRow + srcX) & 0xff;
+                int u;
+                int v;
+                if (semiPlanar) {
+                    int c = chromaRow + (srcX & ~1);
+                    u = yuv.get(c) & 0xff;
+                    v = yuv.get(c + 1) & 0xff;
+                } else {
+                    u = yuv.get(chromaRow + srcX / 2) & 0xff;
+                    v = yuv.get(vRow + srcX / 2) & 0xff;
+                }
+                argb[out++] = yuvToArgb(luma, u, v);
+            }
+        }
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue) {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+
+    /**
+     * BT.601 limited range conversion in 10-bit fixed point.
+     */
+    private static int yuvToArgb(int y, int u, int v) {
+        int c = Math.max(0, y - 16) * 1192;
+        int d = u - 128;
+        int e = v - 128;
+        int r = (c + 1634 * e) >> 10;
+        int g = (c - 833 * e - 400 * d) >> 10;
+        int b = (c + 2066 * d) >> 10;
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,418 @@
+package com.manhdev.vernazza;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Downloads a remote video into the {@link DownloadCache} in the background, while the bytes
+ * already downloaded can be read.
+ *
+ * <p>The response body is copied through a direct buffer straight into a file channel. Readers
+ * of bytes that have not arrived yet wait for them, so playback and frame extraction can start
+ * as soon as the header of the video is in.</p>
+ *
+ * <p>Large videos on servers that support ranges are fetched over several connections by a
+ * {@link ChunkedDownloader}, front to back, which makes better use of links with high latency.
+ * Reads then also succeed past the gaps the chunks still leave.</p>
+ *
+ * <p>A video larger than the whole download cache is downloaded into a file outside it,
+ * deleted as soon as it is opened, so its space is freed when the download is released.</p>
+ *
+ * A video downloaded completely before is read from the cache without any request. A partial
+ * download resumes with a range request, conditional on the content being unchanged.
+ */
+public class StreamingDownload implements ByteSource {
+
+    private static final String LOG_TAG = "StreamingDownload";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    // Bytes downloaded between updates of the cache budget
+    private static final long UPDATE_INTERVAL = 4 * 1024 * 1024;
+    // Shortest remaining content worth splitting over several connections
+    private static final long MIN_CHUNKED_LENGTH = 2 * ChunkedDownloader.DEFAULT_CHUNK_SIZE;
+
+    /** Number of connections used for large videos unless told otherwise. */
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    private final URL url;
+    private final File cacheDir;
+    private final int connectionCount;
+    private Thread thread;
+    private ChunkedDownloader chunks;
+    private long lastUpdate;
+
+    private RandomAccessFile output;
+    private FileChannel channel;
+    private boolean connected;
+    private long length = -1;
+    private String contentType;
+    private long downloaded;
+    private boolean finished;
+    private IOException error;
+    private boolean released;
+
+    /**
+     * @param url       Location of the video.
+     * @param cacheDir  Application cache directory, holding the download cache.
+     */
+    public StreamingDownload(URL url, File cacheDir) {
+        this(url, cacheDir, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * @param connections   Number of concurrent connections for large videos, 1 to download
+     *                      sequentially.
+     */
+    public StreamingDownload(URL url, File cacheDir, int connections) {
+        this.url = url;
+        this.cacheDir = cacheDir;
+        this.connectionCount = connections;
+    }
+
+    /**
+     * Starts downloading on a background thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                download();
+            }
+        }, LOG_TAG);
+        thread.start();
+    }
+
+    /**
+     * Stops the download, keeping what was downloaded in the cache. Pending reads fail.
+     */
+    public void release() {
+        Thread downloader;
+        ChunkedDownloader chunked;
+        synchronized (this) {
+            released = true;
+            downloader = thread;
+            chunked = chunks;
+            notifyAll();
+        }
+        if (chunked != null) {
+            chunked.cancel();
+        }
+        if (downloader != null) {
+            downloader.interrupt();
+        }
+        closeOutput();
+    }
+
+    public long getLength() throws IOException {
+        synchronized (this) {
+            try {
+                while (!connected && error == null && !released) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkReadable();
+            return length;
+        }
+    }
+
+    public synchronized String getContentType() {
+        return contentType;
+    }
+
+    public String getOrigin() {
+        return url.toString();
+    }
+
+    /**
+     * Returns the number of bytes downloaded so far, all from the start of the content.
+     */
+    public synchronized long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * Returns true once the whole content is in the file.
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+        FileChannel source;
+        synchronized (this) {
+            long available;
+            try {
+                while ((available = getAvailable(position)) <= 0 && !finished && error == null
+                        && !released) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (available <= 0) {
+                checkReadable();
+                return -1;
+            }
+            count = (int) Math.min(count, available);
+            source = channel;
+        }
+        // Positional reads do not disturb the writes of the download thread
+        return source.read(ByteBuffer.wrap(buffer, offset, count), position);
+    }
+
+    private long getAvailable(long position) {
+        if (position < downloaded) {
+            return downloaded - position;
+        }
+        return chunks != null ? chunks.getAvailable(position) : 0;
+    }
+
+    private void checkReadable() throws IOException {
+        if (released) {
+            throw new IOException("download released");
+        }
+        if (error != null) {
+            throw new IOException("download failed: " + error.getMessage());
+        }
+    }
+
+    private void download() {
+        HttpURLConnection connection = null;
+        try {
+            DownloadCache cache = DownloadCache.open(cacheDir);
+            if (cache == null) {
+                throw new IOException("download cache unavailable");
+            }
+            DownloadCache.Entry entry = cache.open(url.toString());
+            File file = cache.getFile(entry);
+            long position = Math.min(file.length(), entry.getDownloaded());
+            if (entry.isComplete() && position == entry.getLength()) {
+                Log.i(LOG_TAG, "cached " + url);
+                publish(new RandomAccessFile(file, "r"), position, null, position, true);
+                return;
+            }
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            String validator = getValidator(entry.getEtag(), entry.getLastModified());
+            if (position > 0 && validator != null) {
+                connection.setRequestProperty("Range", "bytes=" + position + "-");
+                connection.setRequestProperty("If-Range", validator);
+            }
+            int code = connection.getResponseCode();
+            long contentLength;
+            boolean kept = true;
+            if (code == HttpURLConnection.HTTP_PARTIAL && position > 0) {
+                Log.i(LOG_TAG, "resuming " + url + " at " + position);
+                contentLength = RangeDataSource.parseTotal(connection.getHeaderField("Content-Range"));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // New or changed content
+                position = 0;
+                contentLength = parseLength(connection.getHeaderField("Content-Length"));
+                if (cache.fits(contentLength)) {
+                    cache.reset(entry, connection.getHeaderField("ETag"),
+                            connection.getHeaderField("Last-Modified"), contentLength);
+                } else {
+                    // It would evict itself while it downloads
+                    Log.i(LOG_TAG, url + " is larger than the download cache, not kept");
+                    cache.remove(entry);
+                    file = File.createTempFile(LOG_TAG, null, cacheDir);
+                    kept = false;
+                }
+            } else {
+                throw new IOException("HTTP " + code + " for " + url);
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (!kept) {
+                // Freed once closed, even if the process dies first
+                file.delete();
+            }
+            if (!publish(raf, contentLength, connection.getContentType(), position, false)) {
+                return;
+            }
+
+            long resumedAt = position;
+            long start = SystemClock.elapsedRealtime();
+            lastUpdate = position;
+            String chunkValidator = kept ? getValidator(entry.getEtag(), entry.getLastModified())
+                    : getValidator(connection.getHeaderField("ETag"),
+                            connection.getHeaderField("Last-Modified"));
+            boolean ranges = code == HttpURLConnection.HTTP_PARTIAL
+                    || "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+            if (connectionCount > 1 && ranges && chunkValidator != null && contentLength >= 0
+                    && contentLength - position >= MIN_CHUNKED_LENGTH) {
+                position = downloadChunked(cache, entry, connection, chunkValidator, position,
+                        contentLength);
+            } else {
+                position = downloadSequential(cache, entry, connection, position);
+            }
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            Log.i(LOG_TAG, (position - resumedAt) + " bytes in " + elapsed + "ms, "
+                    + ((position - resumedAt) / elapsed) + " KB/s");
+            if (contentLength >= 0 && position != contentLength) {
+                throw new IOException("truncated response for " + url);
+            }
+            cache.complete(entry, position);
+            synchronized (this) {
+                length = position;
+                finished = true;
+                notifyAll();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!released) {
+                    Log.e(LOG_TAG, e.toString());
+                }
+                error = e;
+                notifyAll();
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private long downloadSequential(DownloadCache cache, DownloadCache.Entry entry,
+            HttpURLConnection connection, long position) throws IOException {
+        ReadableByteChannel in = Channels.newChannel(connection.getInputStream());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (true) {
+            int read = in.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+            onDownloaded(cache, entry, position);
+        }
+        return position;
+    }
+
+    private long downloadChunked(final DownloadCache cache, final DownloadCache.Entry entry,
+            HttpURLConnection connection, String validator, long position, long contentLength)
+            throws IOException {
+        ChunkedDownloader downloader = new ChunkedDownloader(url, validator, channel, position,
+                contentLength - 1, ChunkedDownloader.DEFAULT_CHUNK_SIZE,
+                new ChunkedDownloader.Listener() {
+            public void onProgress(long contiguous) {
+                onDownloaded(cache, entry, contiguous);
+            }
+
+            public void onChunkComplete(long start, long end, long elapsedMs, int attempts) {
+                // Logged by the downloader
+            }
+        });
+        // The response already under way serves the first chunk
+        downloader.setInitialStream(connection.getInputStream());
+        synchronized (this) {
+            if (released) {
+                throw new IOException("download released");
+            }
+            chunks = downloader;
+        }
+        downloader.run(connectionCount);
+        return contentLength;
+    }
+
+    /**
+     * Publishes the bytes downloaded from the start of the content, on the download threads.
+     */
+    private void onDownloaded(DownloadCache cache, DownloadCache.Entry entry, long contiguous) {
+        boolean update;
+        synchronized (this) {
+            downloaded = Math.max(downloaded, contiguous);
+            update = downloaded - lastUpdate >= UPDATE_INTERVAL;
+            if (update) {
+                lastUpdate = downloaded;
+            }
+            notifyAll();
+        }
+        if (update) {
+            cache.update(entry, contiguous);
+        }
+    }
+
+    /**
+     * Makes the file readable up to the bytes already downloaded.
+     * @return          False if the download was released meanwhile.
+     */
+    private boolean publish(RandomAccessFile raf, long contentLength, String type, long available,
+            boolean complete) throws IOException {
+        synchronized (this) {
+            if (!released) {
+                output = raf;
+                channel = raf.getChannel();
+                length = contentLength;
+                contentType = type;
+                downloaded = available;
+                finished = complete;
+                connected = true;
+                notifyAll();
+                return true;
+            }
+        }
+        raf.close();
+        return false;
+    }
+
+    /**
+     * Returns the validator a resumed request is made conditional on, or null if the content
+     * cannot be resumed safely.
+     */
+    private static String getValidator(String etag, String lastModified) {
+        if (etag != null && !etag.startsWith("W/")) {
+            // Weak tags are not allowed in If-Range
+            return etag;
+        }
+        return lastModified;
+    }
+
+    private void closeOutput() {
+        RandomAccessFile raf;
+        synchronized (this) {
+            raf = output;
+            output = null;
+        }
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+        }
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.manhdev.vernazza;
+
+/**
+ * Formats time offsets as "mm:ss" or "mm:ss.SSS" into a reusable character buffer.
+ *
+ * <p>Formatting allocates nothing, which matters for text refreshed on every display frame;
+ * the buffer can be handed to {@link android.widget.TextView#setText(char[], int, int)}.
+ * Minutes are not wrapped into hours, matching the labels of the frame list.</p>
+ *
+ * An instance is not thread safe.
+ */
+public class TimeFormatter {
+
+    // Long enough for the minutes of any long value
+    private static final int MAX_LENGTH = 32;
+
+    private final char[] buffer = new char[MAX_LENGTH];
+    private int length;
+
+    /**
+     * Formats a time offset into the buffer.
+     * @param millis        Time offset in msecs, negative values are formatted as 0.
+     * @param showMillis    True to append the milliseconds.
+     * @return The number of characters written at the start of the buffer.
+     */
+    public int format(long millis, boolean showMillis) {
+        millis = Math.max(0, millis);
+        long mins = millis / 60000;
+        int secs = (int) (millis / 1000 % 60);
+        length = 0;
+        if (mins < 10) {
+            buffer[length++] = '0';
+        }
+        appendNumber(mins);
+        buffer[length++] = ':';
+        appendDigits(secs, 2);
+        if (showMillis) {
+            buffer[length++] = '.';
+            appendDigits((int) (millis % 1000), 3);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the buffer holding the last formatted time, valid until the next call to
+     * {@link #format(long, boolean)}.
+     */
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the number of characters of the last formatted time.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the last formatted time as a new string.
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    private void appendNumber(long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void appendDigits(int value, int digits) {
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+}
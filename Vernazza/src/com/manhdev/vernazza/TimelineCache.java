@@ -0,0 +1,110 @@
+package com.manhdev.vernazza;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Keeps the frame times computed for a video, such as its key frames, across restarts.
+ *
+ * Each timeline is a small binary file under the application cache directory, keyed by video
+ * identity and the kind of timeline.
+ */
+public class TimelineCache {
+
+    private static final String LOG_TAG = "TimelineCache";
+    private static final String DIRECTORY = "timelines";
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    /** Timeline of the sync samples of a video. */
+    public static final String KEY_FRAMES = "keyframes";
+
+    /** Timeline of the scene changes of a video. */
+    public static final String SCENES = "scenes";
+
+    private static TimelineCache instance;
+
+    private final DiskLruCache cache;
+
+    private TimelineCache(DiskLruCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the process wide timeline cache, opening it on first use. Not for the UI thread.
+     * @param cacheDir  Application cache directory.
+     * @return          The cache or null if it could not be opened.
+     */
+    public static synchronized TimelineCache open(File cacheDir) {
+        if (instance == null) {
+            try {
+                instance = new TimelineCache(new DiskLruCache(new File(cacheDir, DIRECTORY), MAX_BYTES));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param videoId   Identity of the video.
+     * @param kind      Kind of timeline, such as {@link #KEY_FRAMES}.
+     * @return          Frame times in usecs or null if none were stored.
+     */
+    public long[] get(String videoId, String kind) {
+        File file = cache.get(key(videoId, kind));
+        if (file == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                long[] times = new long[in.readInt()];
+                for (int i = 0; i < times.length; i++) {
+                    times[i] = in.readLong();
+                }
+                return times;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+            cache.remove(key(videoId, kind));
+            return null;
+        }
+    }
+
+    /**
+     * Stores frame times, replacing any timeline of the same kind for the video.
+     */
+    public void put(String videoId, String kind, long[] times) {
+        String key = key(videoId, kind);
+        File editFile = cache.beginEdit(key);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(editFile)));
+            try {
+                out.writeInt(times.length);
+                for (long time : times) {
+                    out.writeLong(time);
+                }
+            } finally {
+                out.close();
+            }
+            cache.commit(key, editFile);
+        } catch (IOException e) {
+            cache.abort(editFile);
+            Log.e(LOG_TAG, e.toString());
+        }
+    }
+
+    private static String key(String videoId, String kind) {
+        return videoId + "-" + kind;
+    }
+}
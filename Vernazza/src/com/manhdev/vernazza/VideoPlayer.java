@@ -1,18 +1,11 @@
 package com.manhdev.vernazza;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 import android.app.ListActivity;
 import android.media.MediaPlayer;
@@ -32,9 +25,11 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.webkit.URLUtil;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.VideoView;
 
 public class VideoPlayer extends ListActivity {
@@ -53,13 +48,27 @@ public class VideoPlayer extends ListActivity {
 	private ControlMode controlMode = ControlMode.HIDE;
 	private Map<ControlMode, ArrayList<View> > visibleControls;
 	private boolean isPrepared;
-	private BlockingQueue<Long> seekQueue;
-	private SeekTask seekTask;
+	private SeekController seekController;
+	private ScrubPreview scrubPreview;
 	private ResizeState resizeState;
-	private VideoPositionTask videoPositionTask;
+	private PositionOverlay positionOverlay;
+	private TextView textVideoHeader;
+	private MetricsOverlay metricsOverlay;
+	// Background work on the video, cancelled with the activity
+	private AdapterTask adapterTask;
+	private SyncTimesTask syncTimesTask;
+	private TimelineTask timelineTask;
+	private String dataSource;
+	private StreamingDownload download;
+	private String frameSource;
+	private RangeDataSource frameRanges;
 
     private static final int FRAME_INTERVAL_COUNT = 8;
     private static final FrameInterval[] frameIntervals = new FrameInterval[FRAME_INTERVAL_COUNT]; 
+    private static final int MENU_KEY_FRAMES = FRAME_INTERVAL_COUNT;
+    private static final int MENU_SCENES = FRAME_INTERVAL_COUNT + 1;
+    private static final int MENU_METRICS = FRAME_INTERVAL_COUNT + 2;
+    private static final int MENU_DUMP_METRICS = FRAME_INTERVAL_COUNT + 3;
 
     class FrameInterval {
         int interval;
@@ -88,19 +97,36 @@ public class VideoPlayer extends ListActivity {
         frameIntervals[6] = new FrameInterval(30000, "30s");
         frameIntervals[7] = new FrameInterval(60000, "1m");
 
+        String path = getIntent().getStringExtra(FILE_PATH);
         try {
-            setListAdapter(new ImageAdapter(getIntent().getStringExtra(FILE_PATH)));
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, e.getMessage());
+            dataSource = getDataSource(path);
         } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
+            Log.e(TAG, e.getMessage(), e);
+            dataSource = path;
+        }
+        try {
+            frameSource = getFrameSource(path);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            frameSource = dataSource;
+        }
+        // Opening the video parses its header, which may still be downloading
+        adapterTask = new AdapterTask();
+        if (frameSource.equals(dataSource)) {
+            adapterTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, dataSource);
+        } else {
+            adapterTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, frameSource, dataSource);
         }
         
         registerForContextMenu(getListView());
 
-        seekQueue = new ArrayBlockingQueue<Long>(1);
-        
 		videoView = (VideoView) findViewById(R.id.surface_view);
+		seekController = new SeekController(videoView);
+		scrubPreview = new ScrubPreview((ImageView) findViewById(R.id.scrub_preview), videoView,
+		        seekController);
+		textVideoHeader = (TextView) findViewById(R.id.textVideoHeader);
+		positionOverlay = new PositionOverlay(textVideoHeader, videoView, scrubPreview);
+		metricsOverlay = new MetricsOverlay((TextView) findViewById(R.id.metrics_overlay));
 
 		playButton = (ImageButton) findViewById(R.id.play);
 		pauseButton = (ImageButton) findViewById(R.id.pause);
@@ -111,6 +137,7 @@ public class VideoPlayer extends ListActivity {
 			public void onClick(View view) {
                 videoView.start();
                 videoView.requestFocus();
+                positionOverlay.refresh();
 			}
 		});
 		pauseButton.setOnClickListener(new OnClickListener() {
@@ -123,7 +150,7 @@ public class VideoPlayer extends ListActivity {
 		resetButton.setOnClickListener(new OnClickListener() {
 			public void onClick(View view) {
 				if (videoView != null) {
-					videoView.seekTo(0);
+					seekController.seekTo(0);
 				}
 			}
 		});
@@ -164,7 +191,7 @@ public class VideoPlayer extends ListActivity {
         playerControls.add(pauseButton);
         playerControls.add(resetButton);
         playerControls.add(resizeButton);
-        playerControls.add((TextView)findViewById(R.id.textVideoHeader));
+        playerControls.add(textVideoHeader);
         visibleControls.put(ControlMode.SHOW, playerControls);
         ArrayList<View> frameListControls = new ArrayList<View>();
         frameListControls.add(getListView());
@@ -174,6 +201,13 @@ public class VideoPlayer extends ListActivity {
             @Override
             public void onPrepared(MediaPlayer mp) {
                 isPrepared = true;
+                mp.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+                    @Override
+                    public void onSeekComplete(MediaPlayer mp) {
+                        seekController.onSeekComplete();
+                        positionOverlay.refresh();
+                    }
+                });
                 playVideo();
             }
         });
@@ -186,6 +220,7 @@ public class VideoPlayer extends ListActivity {
                     if (path.equals(current) && videoView != null) {
                         videoView.start();
                         videoView.requestFocus();
+                        positionOverlay.refresh();
                     } else {
                         prepareVideo();
                     }
@@ -194,23 +229,57 @@ public class VideoPlayer extends ListActivity {
         });
 	}
 
-    @SuppressWarnings("unchecked")
     @Override
     public void onResume() {
         super.onResume();
         isPrepared = false;
-        seekQueue.clear();
-        if (seekTask != null) {
-            seekTask.cancel(true);
+        seekController.cancel();
+        metricsOverlay.resume();
+        updateControls();
+    }
+
+    @Override
+    protected void onPause() {
+        positionOverlay.stop();
+        metricsOverlay.pause();
+        scrubPreview.cancel();
+        seekController.cancel();
+        Log.i(TAG, seekController.toString());
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (adapterTask != null) {
+            adapterTask.cancel(false);
         }
-        seekTask = new SeekTask();
-        seekTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, seekQueue, null, null);
-        if (videoPositionTask != null) {
-            videoPositionTask.cancel(true);
+        if (syncTimesTask != null) {
+            syncTimesTask.cancel(true);
         }
-        videoPositionTask =  new VideoPositionTask();
-        videoPositionTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null, null, null);
-        updateControls();
+        if (timelineTask != null) {
+            timelineTask.cancel(true);
+        }
+        ImageAdapter imageAdapter = (ImageAdapter) getListAdapter();
+        if (imageAdapter != null) {
+            imageAdapter.release();
+        }
+        if (frameRanges != null) {
+            Log.i(TAG, "frames fetched with " + frameRanges);
+            try {
+                LocalProxyServer.getInstance().unregister(frameSource);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+        if (download != null) {
+            try {
+                LocalProxyServer.getInstance().unregister(dataSource);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+            download.release();
+        }
+        super.onDestroy();
     }
 
     private void prepareVideo() {
@@ -220,11 +289,11 @@ public class VideoPlayer extends ListActivity {
             
             current = path;
 
-            Uri uri = Uri.parse(path);
+            Uri uri = Uri.parse(dataSource);
             if (uri.isAbsolute() && uri.isHierarchical()) {
                 videoView.setVideoURI(uri);
             } else {
-                videoView.setVideoPath(getDataSource(path));
+                videoView.setVideoPath(dataSource);
             }
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
@@ -234,6 +303,7 @@ public class VideoPlayer extends ListActivity {
 	private void playVideo() {
 		videoView.start();
 		videoView.requestFocus();
+		positionOverlay.refresh();
 	}
 
     @Override
@@ -243,41 +313,47 @@ public class VideoPlayer extends ListActivity {
             ControlMode.FRAMES,
             ControlMode.HIDE
         };
-        if (ev.getAction() == MotionEvent.ACTION_DOWN){
+        if (scrubPreview.onTouchEvent(ev)) {
+            positionOverlay.refresh();
+            return true;
+        }
+        // Toggled on release, since a drag scrubs instead
+        if (ev.getAction() == MotionEvent.ACTION_UP){
             controlMode = stateMachine[controlMode.ordinal()];
             updateControls();
         }
         return true;
     }
     
+	/**
+	 * @brief
+	 * Returns the location the media framework reads the video from.
+	 * 
+	 * Network videos are downloaded to the download cache in the background and served from
+	 * the local proxy while they download, so that playback starts once the header is in.
+	 */
 	private String getDataSource(String path) throws IOException {
 		if (!URLUtil.isNetworkUrl(path)) {
 			return path;
-		} else {
-			URL url = new URL(path);
-			URLConnection cn = url.openConnection();
-			cn.connect();
-			InputStream stream = cn.getInputStream();
-			if (stream == null)
-				throw new RuntimeException("stream is null");
-			File temp = File.createTempFile("mediaplayertmp", "dat");
-			temp.deleteOnExit();
-			String tempPath = temp.getAbsolutePath();
-			FileOutputStream out = new FileOutputStream(temp);
-			byte buf[] = new byte[128];
-			do {
-				int numread = stream.read(buf);
-				if (numread <= 0)
-					break;
-				out.write(buf, 0, numread);
-			} while (true);
-			try {
-				stream.close();
-			} catch (IOException ex) {
-				Log.e(TAG, "error: " + ex.getMessage(), ex);
-			}
-			return tempPath;
 		}
+		download = new StreamingDownload(new URL(path), getCacheDir());
+		download.start();
+		return LocalProxyServer.getInstance().register(download);
+	}
+
+	/**
+	 * @brief
+	 * Returns the location frames of the video are extracted from.
+	 * 
+	 * Frames of network videos are extracted through range requests, fetching only the
+	 * container index and the samples around each frame rather than the whole video.
+	 */
+	private String getFrameSource(String path) throws IOException {
+		if (!URLUtil.isNetworkUrl(path)) {
+			return path;
+		}
+		frameRanges = new RangeDataSource(new URL(path));
+		return LocalProxyServer.getInstance().register(frameRanges);
 	}
 
 	private void updateControls() {
@@ -296,6 +372,12 @@ public class VideoPlayer extends ListActivity {
                 v.setVisibility(View.VISIBLE);
             }
 	    }
+	    // The position is only followed while it shows
+	    if (textVideoHeader.getVisibility() == View.VISIBLE) {
+	        positionOverlay.start();
+	    } else {
+	        positionOverlay.stop();
+	    }
 	}
 
 	/**
@@ -312,72 +394,130 @@ public class VideoPlayer extends ListActivity {
         Log.i(TAG, "isPrepared " + Boolean.toString(isPrepared) + " timeOffset " + Long.toString(timeOffset));
 	    if (timeOffset != -1) {
             if (isPrepared) {
-	            if (!seekQueue.isEmpty()) {
-	                seekQueue.clear();
-	            }
-                if (seekQueue.offer(timeOffset)) {
-                    Log.i(TAG, "queued");
-                } else {
-                    Log.i(TAG, "dropped");
-                }
+                seekController.seekTo(timeOffset);
             }
 	    }
 	}
 
-	/**
-	 * @brief
-	 * Task to ensure VideoView only processe one seek command at a time. 
-	 */
-	private class SeekTask extends AsyncTask<BlockingQueue<Long>, Void, Void> {
+    /**
+     * @brief
+     * Task to open the video for the frame list off the UI thread.
+     * 
+     * Each location given is tried in turn, for servers that do not support range requests.
+     */
+    private class AdapterTask extends AsyncTask<String, Void, ImageAdapter> {
         @Override
-        protected Void doInBackground(BlockingQueue<Long>... params) {
-            BlockingQueue<Long> seekQueue = params[0];
-            Log.i(TAG, "q count " + Integer.toString(seekQueue.size()));
-            while (true) {
+        protected ImageAdapter doInBackground(String... params) {
+            for (String source : params) {
                 try {
-                    long seekUsecs = seekQueue.take();
-                    Log.i(TAG, "seek usecs " + Long.toString(seekUsecs));
-                    videoView.seekTo((int) (seekUsecs / 1000));
-                } catch (InterruptedException ex) {
-                    Log.e(TAG, ex.getMessage(), ex);
-                    break;
+                    return new ImageAdapter(VideoPlayer.this, source);
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
                 }
             }
             return null;
         }
-	}
+
+        @Override
+        protected void onCancelled(ImageAdapter imageAdapter) {
+            // The activity is gone, nothing else will release the extractor
+            if (imageAdapter != null) {
+                imageAdapter.release();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ImageAdapter imageAdapter) {
+            adapterTask = null;
+            if (imageAdapter == null) {
+                return;
+            }
+            setListAdapter(imageAdapter);
+            getListView().setOnScrollListener(imageAdapter);
+            scrubPreview.setImageAdapter(imageAdapter);
+            positionOverlay.setImageAdapter(imageAdapter);
+            if (KeyFrameIndex.isSupported()) {
+                syncTimesTask = new SyncTimesTask(imageAdapter);
+                syncTimesTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        }
+    }
 
     /**
      * @brief
-     * Task to update on-screen text with time of current video position. 
+     * Task to load the key frame times of the video for fast seeking.
      */
-    private class VideoPositionTask extends AsyncTask<Void, String, Void> {
-        private final TextView textVideoHeader = (TextView)findViewById(R.id.textVideoHeader);
+    private class SyncTimesTask extends AsyncTask<Void, Void, long[]> {
+        private final ImageAdapter imageAdapter;
+
+        SyncTimesTask(ImageAdapter imageAdapter) {
+            this.imageAdapter = imageAdapter;
+        }
 
         @Override
-        protected Void doInBackground(Void... params) {
+        protected long[] doInBackground(Void... params) {
             try {
-                while (true) {
-                    if (controlMode == ControlMode.SHOW) {
-                        publishProgress(getVideoPositionText());
-                    }
-                    Thread.sleep(1000);
-                }
-            } catch (InterruptedException ex) {
-                Log.e(TAG, ex.getMessage());
+                return imageAdapter.loadKeyFrameTimes();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                return null;
             }
-            return null;
         }
-        
+
         @Override
-        protected void onProgressUpdate(String... params) {
-            String videoPositionText = params[0];
-            if (controlMode == ControlMode.SHOW && videoPositionText != null) {
-                textVideoHeader.setText(videoPositionText);
+        protected void onPostExecute(long[] times) {
+            if (times != null && times.length > 0) {
+                seekController.setSyncTimes(times);
             }
         }
     }
 
+    /**
+     * @brief
+     * Task to load the key frame or scene timeline of the video and list its frames.
+     * 
+     * Reading the sync sample table or analysing the scenes may take a while on long videos.
+     * Both are cached per video afterwards.
+     */
+    private class TimelineTask extends AsyncTask<Void, Void, long[]> {
+        private final ImageAdapter imageAdapter;
+        private final boolean scenes;
+
+        TimelineTask(ImageAdapter imageAdapter, boolean scenes) {
+            this.imageAdapter = imageAdapter;
+            this.scenes = scenes;
+        }
+
+        @Override
+        protected long[] doInBackground(Void... params) {
+            try {
+                return scenes ? imageAdapter.loadSceneTimes() : imageAdapter.loadKeyFrameTimes();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final long[] times) {
+            if (times == null || times.length == 0 || isFinishing()) {
+                return;
+            }
+            if (!scenes) {
+                seekController.setSyncTimes(times);
+            }
+            updateFrames(imageAdapter, new Runnable() {
+                public void run() {
+                    if (scenes) {
+                        imageAdapter.setSceneTimes(times);
+                    } else {
+                        imageAdapter.setKeyFrameTimes(times);
+                    }
+                }
+            });
+        }
+    }
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
 	    if (v.getId() == getListView().getId()) {
@@ -385,26 +525,83 @@ public class VideoPlayer extends ListActivity {
 	        for (int i = 0; i < frameIntervals.length; ++i) {
 	            menu.add(Menu.NONE, i, i, frameIntervals[i].title);
 	        }
+	        if (KeyFrameIndex.isSupported()) {
+	            menu.add(Menu.NONE, MENU_KEY_FRAMES, MENU_KEY_FRAMES, R.string.key_frames);
+	        }
+	        if (SceneDetector.isSupported()) {
+	            menu.add(Menu.NONE, MENU_SCENES, MENU_SCENES, R.string.scenes);
+	        }
+	        menu.add(Menu.NONE, MENU_METRICS, MENU_METRICS,
+	                metricsOverlay.isShown() ? R.string.hide_metrics : R.string.show_metrics);
+	        menu.add(Menu.NONE, MENU_DUMP_METRICS, MENU_DUMP_METRICS, R.string.dump_metrics);
 	    }
 	}
 
     @Override
 	public boolean onMenuItemSelected(int featureId, MenuItem menuItem) {
-	    int index = menuItem.getItemId();
+	    final int index = menuItem.getItemId();
+        if (index == MENU_METRICS) {
+            metricsOverlay.setShown(!metricsOverlay.isShown());
+            return true;
+        } else if (index == MENU_DUMP_METRICS) {
+            dumpMetrics();
+            return true;
+        }
+        final ImageAdapter imageAdapter = (ImageAdapter)getListView().getAdapter();
+        if (imageAdapter == null) {
+            return true;
+        }
 
-        // Update underlying interval and notify observers of resulting change to dataset.
-        ImageAdapter imageAdapter = (ImageAdapter)getListView().getAdapter();
-        imageAdapter.setInterval(frameIntervals[index].interval);
-        imageAdapter.notifyDataSetChanged();
+        if (index == MENU_KEY_FRAMES || index == MENU_SCENES) {
+            if (timelineTask != null) {
+                timelineTask.cancel(true);
+            }
+            timelineTask = new TimelineTask(imageAdapter, index == MENU_SCENES);
+            timelineTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            updateFrames(imageAdapter, new Runnable() {
+                public void run() {
+                    imageAdapter.setInterval(frameIntervals[index].interval);
+                }
+            });
+        }
 
 	    return true;
 	}
 
-	protected String getVideoPositionText() {
-        int millis = videoView.getCurrentPosition();
-        return String.format("%02d:%02d",
-                TimeUnit.MILLISECONDS.toMinutes(millis),
-                TimeUnit.MILLISECONDS.toSeconds(millis) -
-                TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(millis)));
-	}
+    /**
+     * Writes the metrics report to the external files directory, where it can be pulled from
+     * to compare devices and builds.
+     */
+    private void dumpMetrics() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        try {
+            File file = Metrics.get().dump(dir);
+            Log.i(TAG, "metrics written to " + file);
+            Toast.makeText(this, getString(R.string.metrics_dumped, file.getPath()),
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            Toast.makeText(this, R.string.metrics_not_dumped, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Applies a change of the frames listed, keeping the same moment of the video at the top.
+     */
+    private void updateFrames(ImageAdapter imageAdapter, Runnable change) {
+        ListView listView = getListView();
+        int first = listView.getFirstVisiblePosition();
+        View firstView = listView.getChildAt(0);
+        int top = firstView != null ? firstView.getTop() : 0;
+
+        // Update underlying frames and notify observers of resulting change to dataset.
+        long anchorUsecs = imageAdapter.getCount() > 0 ? (Long) imageAdapter.getItem(first) : 0;
+        change.run();
+        imageAdapter.notifyDataSetChanged();
+        listView.setSelectionFromTop(imageAdapter.getPosition(anchorUsecs), top);
+    }
 }